@@ -0,0 +1,191 @@
+package com.dataiku.clubhouse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.eclipse.egit.github.core.Issue;
+import org.eclipse.egit.github.core.User;
+import org.eclipse.egit.github.core.client.GsonUtils;
+import org.trello4j.model.Action;
+import org.trello4j.model.Board;
+import org.trello4j.model.Card;
+import org.trello4j.model.Checklist;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.clubhouse4j.api.v3beta.Label;
+import io.clubhouse4j.api.v3beta.Member;
+import io.clubhouse4j.api.v3beta.Profile;
+import io.clubhouse4j.api.v3beta.Project;
+import io.clubhouse4j.api.v3beta.WorkflowState;
+
+/**
+ * Synthetic Clubhouse, Github and Trello data for the benchmarks. Source objects are parsed from JSON as the API
+ * clients do, so that they are shaped like the real ones.
+ */
+final class BenchmarkFixtures {
+
+    private static final Gson TRELLO_GSON = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").create();
+    private static final String SCREENSHOT = "https://user-images.githubusercontent.com/22987725/39273087-d1e6cc2e-48ab-11e8-83cf-c4a26f37488a.png";
+
+    private BenchmarkFixtures() {
+    }
+
+    static List<Member> clubhouseMembers(int count) {
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Member member = new Member();
+            member.id = new UUID(0, i);
+            member.profile = new Profile();
+            member.profile.mention_name = "user" + i;
+            member.profile.name = "User Number " + i;
+            member.profile.email_address = "user" + i + "@example.com";
+            members.add(member);
+        }
+        return members;
+    }
+
+    static User githubUser(int i) {
+        return GsonUtils.fromJson("{\"login\": \"gh-user" + i + "\", \"name\": \"User Number " + i + "\"}", User.class);
+    }
+
+    static org.trello4j.model.Member trelloMember(int i) {
+        return TRELLO_GSON.fromJson("{\"id\": \"m" + i + "\", \"username\": \"user" + i + "\", \"fullName\": \"User Number " + i + "\"}", org.trello4j.model.Member.class);
+    }
+
+    /**
+     * An issue body as written on Github: a few paragraphs of text with pasted screenshots, some of them linked.
+     */
+    static String githubBody(int paragraphs) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < paragraphs; i++) {
+            body.append("When running the recipe on a partitioned dataset, the job fails with the following error (see 1 < 2):\n\n");
+            body.append("<img width=\"836\" alt=\"screen shot ").append(i).append("\" src=\"").append(SCREENSHOT).append("\">\n\n");
+            body.append("```\njava.lang.IllegalStateException: <b>not</b> a partition\n```\n\n");
+            if (i % 3 == 0) {
+                body.append("<a href=\"").append(SCREENSHOT).append("\"><img src=\"").append(SCREENSHOT).append("\" alt=\"linked\" /></a>\n\n");
+            }
+        }
+        return body.toString();
+    }
+
+    static Issue githubIssue(int number, int members) {
+        String json = "{" +
+                "\"number\": " + number + "," +
+                "\"title\": \"Job fails on partitioned datasets\"," +
+                "\"state\": \"closed\"," +
+                "\"html_url\": \"https://github.com/dataiku/dip/issues/" + number + "\"," +
+                "\"created_at\": \"2018-04-25T17:11:43Z\"," +
+                "\"updated_at\": \"2018-05-02T09:00:00Z\"," +
+                "\"closed_at\": \"2018-05-02T09:00:00Z\"," +
+                "\"comments\": 0," +
+                "\"user\": {\"login\": \"gh-user" + (members - 1) + "\", \"name\": \"User Number " + (members - 1) + "\"}," +
+                "\"assignee\": {\"login\": \"gh-user" + (members / 2) + "\", \"name\": \"User Number " + (members / 2) + "\"}," +
+                "\"labels\": [{\"name\": \"bug\", \"color\": \"d73a4a\"}, {\"name\": \"component:recipes\", \"color\": \"0075ca\"}, {\"name\": \"new label\", \"color\": \"#cfd3d7\"}]" +
+                "}";
+        Issue issue = GsonUtils.fromJson(json, Issue.class);
+        issue.setBody(githubBody(5));
+        return issue;
+    }
+
+    static Project project() {
+        Project project = new Project();
+        project.id = 42L;
+        project.name = "Benchmark";
+        return project;
+    }
+
+    static Map<String, WorkflowState> workflowStates() {
+        Map<String, WorkflowState> states = new HashMap<>();
+        long id = 500000000L;
+        for (String name : new String[]{"Unscheduled", "Ready for Development", "In Development", "Ready for Review", "Completed"}) {
+            WorkflowState state = new WorkflowState();
+            state.id = id++;
+            state.name = name;
+            states.put(name, state);
+        }
+        return states;
+    }
+
+    static List<Label> clubhouseLabels() {
+        List<Label> labels = new ArrayList<>();
+        for (String name : new String[]{"component:recipes", "To Do", "Doing", "green"}) {
+            Label label = new Label();
+            label.id = (long) labels.size();
+            label.name = name;
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    static TrelloMigrationParams trelloMigrationParams() {
+        TrelloBoardMigrationParams board = new TrelloBoardMigrationParams();
+        board.name = "Roadmap";
+        board.migrate = true;
+        board.migrateListsAs = TrelloBoardMigrationParams.MIGRATE_LISTS_AS_LABELS;
+        board.migrateLabelsIn = Collections.singletonMap("green", "Quick wins");
+        TrelloMigrationParams params = new TrelloMigrationParams();
+        params.boards = Collections.singletonList(board);
+        params.labelsMapping = Collections.singletonMap("orange", "component:recipes");
+        return params;
+    }
+
+    static Board trelloBoard() {
+        return TRELLO_GSON.fromJson("{\"id\": \"b1\", \"name\": \"Roadmap\"}", Board.class);
+    }
+
+    static org.trello4j.model.List trelloList() {
+        return TRELLO_GSON.fromJson("{\"id\": \"l1\", \"name\": \"Doing\", \"idBoard\": \"b1\"}", org.trello4j.model.List.class);
+    }
+
+    static Card trelloCard() {
+        String json = "{" +
+                "\"id\": \"5ae0b5a5c8b1e0a1b2c3d4e5\"," +
+                "\"name\": \"Support partitioned datasets in the recipe\"," +
+                "\"url\": \"https://trello.com/c/abcdef12/42-support-partitioned-datasets\"," +
+                "\"idBoard\": \"b1\"," +
+                "\"idList\": \"l1\"," +
+                "\"desc\": \"The recipe should list the partitions of its input and process them one by one.\\n\\nSee the roadmap.\"," +
+                "\"closed\": false," +
+                "\"dateLastActivity\": \"2018-05-02T09:00:00.000Z\"," +
+                "\"labels\": [{\"name\": \"green\", \"color\": \"green\"}, {\"name\": \"orange\", \"color\": \"orange\"}, {\"name\": \"Bug\", \"color\": \"red\"}]," +
+                "\"badges\": {\"attachments\": 0}" +
+                "}";
+        return TRELLO_GSON.fromJson(json, Card.class);
+    }
+
+    /**
+     * The history of a card: its creation followed by comments from a few members.
+     */
+    static TrelloCardHistory trelloCardHistory(int comments, int members) {
+        TrelloCardHistory history = new TrelloCardHistory();
+        history.accept(trelloAction("createCard", 0, members - 1, null));
+        for (int i = 0; i < comments; i++) {
+            history.accept(trelloAction("commentCard", i + 1, i % members, "Comment " + i + ": looks good, but the partitions should be listed lazily."));
+        }
+        return history;
+    }
+
+    private static Action trelloAction(String type, int minutes, int member, String text) {
+        String json = "{" +
+                "\"id\": \"a" + minutes + "\"," +
+                "\"type\": \"" + type + "\"," +
+                "\"date\": \"2018-04-25T" + String.format("%02d:%02d", 10 + minutes / 60, minutes % 60) + ":00.000Z\"," +
+                "\"memberCreator\": {\"id\": \"m" + member + "\", \"username\": \"user" + member + "\", \"fullName\": \"User Number " + member + "\"}," +
+                "\"data\": {" + (text == null ? "" : "\"text\": \"" + text + "\", ") + "\"card\": {\"id\": \"5ae0b5a5c8b1e0a1b2c3d4e5\"}}" +
+                "}";
+        return TRELLO_GSON.fromJson(json, Action.class);
+    }
+
+    static List<Checklist> trelloChecklists() {
+        String json = "{\"id\": \"c1\", \"idCard\": \"5ae0b5a5c8b1e0a1b2c3d4e5\", \"checkItems\": [" +
+                "{\"name\": \"List the partitions\", \"state\": \"complete\", \"pos\": 1}," +
+                "{\"name\": \"Process them one by one\", \"state\": \"incomplete\", \"pos\": 2}," +
+                "{\"name\": \"Document it\", \"state\": \"incomplete\", \"pos\": 3}]}";
+        return Collections.singletonList(TRELLO_GSON.fromJson(json, Checklist.class));
+    }
+}
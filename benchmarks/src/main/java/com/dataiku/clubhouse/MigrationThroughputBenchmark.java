@@ -0,0 +1,112 @@
+package com.dataiku.clubhouse;
+
+import static com.dataiku.clubhouse.LogConfigurator.configureLogger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.trello4j.Trello;
+import org.trello4j.TrelloImpl;
+
+import io.clubhouse4j.api.v3beta.ClubhouseClient;
+
+/**
+ * End-to-end throughput of the migrations against in-process stubs of Trello, Github and Clubhouse, to size the
+ * thread pools and validate scheduling changes without touching the real services.
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar com.dataiku.clubhouse.MigrationThroughputBenchmark
+ * [github] [trello] [housekeeping] [cleaner]}, configured with system properties:
+ * <ul>
+ * <li>{@code threads}: migration threads, or 0 for the default of each migration (0);</li>
+ * <li>{@code github.issues}, {@code github.comments}: issues and comments per issue (2000, 3);</li>
+ * <li>{@code trello.boards}, {@code trello.cards}, {@code trello.comments}: boards, cards per board and comments per
+ * card (5, 400, 3);</li>
+ * <li>{@code clubhouse.members}, {@code clubhouse.stories}, {@code clubhouse.epics}: existing members, stories and
+ * epics of the workspace (200, 0, 20);</li>
+ * <li>{@code stub.latency}, {@code stub.jitter}, {@code stub.errorRate}, {@code stub.rateLimit}: see
+ * {@link StubBehaviour}, also settable per stub, e.g. {@code clubhouse.rateLimit=200}.</li>
+ * </ul>
+ */
+public class MigrationThroughputBenchmark {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku");
+
+    public static void main(String[] args) throws IOException {
+        configureLogger(logger);
+        logger.setLevel(Level.parse(System.getProperty("logLevel", "WARNING")));
+        List<String> scenarios = args.length == 0 ? Arrays.asList("github", "trello") : Arrays.asList(args);
+        int threads = Integer.getInteger("threads", 0);
+        int members = Integer.getInteger("clubhouse.members", 200);
+        int boards = Integer.getInteger("trello.boards", 5);
+
+        StubUrlRedirector redirector = StubUrlRedirector.install();
+        for (String scenario : scenarios) {
+            ThroughputReport report = new ThroughputReport();
+            StubServer clubhouseServer = new StubServer("clubhouse", StubBehaviour.fromSystemProperties("clubhouse"), StubServer.RateLimitStyle.TOO_MANY_REQUESTS);
+            StubServer githubServer = new StubServer("github", StubBehaviour.fromSystemProperties("github"), StubServer.RateLimitStyle.GITHUB);
+            StubServer trelloServer = new StubServer("trello", StubBehaviour.fromSystemProperties("trello"), StubServer.RateLimitStyle.TOO_MANY_REQUESTS);
+            new StubClubhouseApi(clubhouseServer, report, members, Integer.getInteger("clubhouse.stories", 0), Integer.getInteger("clubhouse.epics", 20));
+            new StubGithubApi(githubServer, report, Integer.getInteger("github.issues", 2000), Integer.getInteger("github.comments", 3), members);
+            new StubTrelloApi(trelloServer, report, boards, Integer.getInteger("trello.cards", 400), Integer.getInteger("trello.comments", 3), members);
+            List<StubServer> servers = new ArrayList<>();
+            for (StubServer server : Arrays.asList(clubhouseServer, githubServer, trelloServer)) {
+                server.start();
+                servers.add(server);
+            }
+            redirector.redirect("api.clubhouse.io", clubhouseServer);
+            redirector.redirect("api.github.com", githubServer);
+            redirector.redirect("api.trello.com", trelloServer);
+
+            try {
+                ClubhouseClient clubhouseClient = new ClubhouseClient("benchmark-token");
+                report.start();
+                switch (scenario) {
+                    case "github":
+                        ThrottledGitHubClient githubClient = new ThrottledGitHubClient(new GithubRequestScheduler());
+                        githubClient.setOAuth2Token("benchmark-token");
+                        GithubMigrationParams githubParams = new GithubMigrationParams();
+                        githubParams.usersMapping = new HashMap<>();
+                        GithubMigration githubMigration = new GithubMigration(clubhouseClient, StubClubhouseApi.PROJECT_NAME, githubClient, StubGithubApi.REPOSITORY, githubParams);
+                        if (threads > 0) {
+                            githubMigration.run(threads, GithubMigration.IssueState.ALL);
+                        } else {
+                            githubMigration.run(GithubMigration.IssueState.ALL);
+                        }
+                        break;
+                    case "trello":
+                        Trello trelloClient = new TrelloImpl("benchmark-key", "benchmark-token");
+                        try (TrelloMigration trelloMigration = new TrelloMigration(clubhouseClient, StubClubhouseApi.PROJECT_NAME, trelloClient, StubTrelloApi.ORGANIZATION, StubTrelloApi.migrationParams(boards))) {
+                            if (threads > 0) {
+                                trelloMigration.run(threads);
+                            } else {
+                                trelloMigration.run();
+                            }
+                        }
+                        break;
+                    case "housekeeping":
+                        Housekeeping housekeeping = new Housekeeping(clubhouseClient);
+                        housekeeping.closeCompletedEpics();
+                        housekeeping.createMilestonesFromEpics();
+                        housekeeping.archiveCompletedEpicsAndStories(Duration.ofDays(30));
+                        break;
+                    case "cleaner":
+                        new ClubhouseCleaner(clubhouseClient).run();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown scenario: " + scenario);
+                }
+                report.stop();
+                String concurrency = (threads > 0 ? threads + " threads" : "default threads") + ", Clubhouse limit " + ClubhouseLimiter.of(clubhouseClient).getLimit();
+                report.print(System.out, scenario + " (" + concurrency + ", " + StubBehaviour.fromSystemProperties("stub") + ")", servers);
+            } finally {
+                servers.forEach(StubServer::stop);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.dataiku.clubhouse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rewriting of the HTML images of Github bodies, from a short comment to a very long issue description.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostProcessImagesBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int paragraphs;
+
+    private String body;
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkFixtures.githubBody(paragraphs);
+    }
+
+    @Benchmark
+    public String postProcessImages() {
+        return GithubMigration.postProcessImages(body);
+    }
+}
@@ -0,0 +1,84 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.egit.github.core.Issue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trello4j.model.Card;
+import org.trello4j.model.Checklist;
+
+import io.clubhouse4j.api.v3beta.CreateStoryParams;
+import io.clubhouse4j.api.v3beta.Member;
+import io.clubhouse4j.api.v3beta.WorkflowState;
+
+/**
+ * Assembly of the story of a Github issue and of a Trello card: user mapping, label mapping, tasks, comments and
+ * description with its migration notes. The migrations run in dry run mode, without any client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoryParamsBenchmark {
+
+    @Param({"1000"})
+    public int members;
+
+    @Param({"0", "20"})
+    public int comments;
+
+    private GithubMigration githubMigration;
+    private Issue githubIssue;
+
+    private TrelloMigration trelloMigration;
+    private TrelloMigrationPlan.ListPlan listPlan;
+    private Card trelloCard;
+    private TrelloCardHistory trelloCardHistory;
+    private List<Checklist> trelloChecklists;
+
+    @Setup
+    public void setUp() {
+        List<Member> clubhouseMembers = BenchmarkFixtures.clubhouseMembers(members);
+        Map<String, WorkflowState> workflowStates = BenchmarkFixtures.workflowStates();
+
+        GithubUserMapping githubUserMapping = new GithubUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        LabelRegistry githubLabels = new LabelRegistry(null, null, null, BenchmarkFixtures.clubhouseLabels());
+        githubMigration = new GithubMigration(BenchmarkFixtures.project(), workflowStates.get("Completed"), githubUserMapping, githubLabels);
+        githubIssue = BenchmarkFixtures.githubIssue(1234, members);
+
+        TrelloMigrationPlan migrationPlan = TrelloMigrationPlan.compile(BenchmarkFixtures.trelloMigrationParams(), workflowStates);
+        TrelloUserMapping trelloUserMapping = new TrelloUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        LabelRegistry trelloLabels = new LabelRegistry(null, null, null, BenchmarkFixtures.clubhouseLabels());
+        trelloMigration = new TrelloMigration(BenchmarkFixtures.project(), migrationPlan, workflowStates, trelloUserMapping, trelloLabels);
+        listPlan = migrationPlan.getList(BenchmarkFixtures.trelloBoard(), BenchmarkFixtures.trelloList());
+        trelloCard = BenchmarkFixtures.trelloCard();
+        trelloCardHistory = BenchmarkFixtures.trelloCardHistory(comments, Math.min(members, 10));
+        trelloChecklists = BenchmarkFixtures.trelloChecklists();
+    }
+
+    @Benchmark
+    public CreateStoryParams githubIssue() throws IOException {
+        return githubMigration.toStoryParams(githubIssue);
+    }
+
+    @Benchmark
+    public CreateStoryParams trelloCard() throws IOException {
+        return trelloMigration.toStoryParams(listPlan, trelloCard, new TrelloCardData(trelloCardHistory, trelloChecklists, false));
+    }
+}
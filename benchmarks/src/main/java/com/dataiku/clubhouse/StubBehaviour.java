@@ -0,0 +1,40 @@
+package com.dataiku.clubhouse;
+
+/**
+ * Behaviour of a stub server, read from system properties prefixed by the name of the stub, then by {@code stub.}:
+ * {@code -Dgithub.latency=80} only slows down the Github stub while {@code -Dstub.latency=80} slows down all of them.
+ */
+class StubBehaviour {
+
+    // Fixed latency of each request, plus a random jitter between 0 and jitterMillis.
+    final long latencyMillis;
+    final long jitterMillis;
+    // Probability of answering 502 Bad Gateway.
+    final double errorRate;
+    // Requests accepted per second before answering as rate limited, or 0 for no limit.
+    final int rateLimitPerSecond;
+
+    StubBehaviour(long latencyMillis, long jitterMillis, double errorRate, int rateLimitPerSecond) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.rateLimitPerSecond = rateLimitPerSecond;
+    }
+
+    static StubBehaviour fromSystemProperties(String stubName) {
+        return new StubBehaviour(
+                Long.parseLong(property(stubName, "latency", "20")),
+                Long.parseLong(property(stubName, "jitter", "10")),
+                Double.parseDouble(property(stubName, "errorRate", "0")),
+                Integer.parseInt(property(stubName, "rateLimit", "0")));
+    }
+
+    private static String property(String stubName, String key, String defaultValue) {
+        return System.getProperty(stubName + "." + key, System.getProperty("stub." + key, defaultValue));
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latencyMillis + "ms (+" + jitterMillis + "ms), errorRate=" + errorRate + ", rateLimit=" + (rateLimitPerSecond > 0 ? rateLimitPerSecond + "/s" : "none");
+    }
+}
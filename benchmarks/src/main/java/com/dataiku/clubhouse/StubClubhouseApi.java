@@ -0,0 +1,346 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * In-memory Clubhouse workspace speaking the part of the v3 API used by the migrations, {@link Housekeeping} and
+ * {@link ClubhouseCleaner}. Routes only match the end of the paths, whatever the API version prefix.
+ */
+class StubClubhouseApi {
+
+    static final String PROJECT_NAME = "DIP";
+    static final long COMPLETED_STATE_ID = 500000004L;
+
+    private static final long TEAM_ID = 1L;
+    private static final long PROJECT_ID = 2L;
+    private static final long EPIC_DONE_STATE_ID = 600000003L;
+
+    private final Gson gson = new Gson();
+    private final ThroughputReport report;
+    private final AtomicLong nextId = new AtomicLong(1000);
+    private final JsonArray members = new JsonArray();
+    private final Map<Long, JsonObject> stories = new ConcurrentHashMap<>();
+    private final Map<Long, JsonObject> epics = new ConcurrentHashMap<>();
+    private final Map<Long, JsonObject> labels = new ConcurrentHashMap<>();
+    private final Map<Long, JsonObject> linkedFiles = new ConcurrentHashMap<>();
+    private final List<JsonObject> milestones = new CopyOnWriteArrayList<>();
+
+    StubClubhouseApi(StubServer server, ThroughputReport report, int memberCount, int existingStories, int existingEpics) {
+        this.report = report;
+        for (int i = 0; i < memberCount; i++) {
+            JsonObject profile = new JsonObject();
+            profile.addProperty("mention_name", "user" + i);
+            profile.addProperty("name", "User Number " + i);
+            profile.addProperty("email_address", "user" + i + "@example.com");
+            JsonObject member = new JsonObject();
+            member.addProperty("id", new UUID(0, i).toString());
+            member.add("profile", profile);
+            members.add(member);
+        }
+        for (int i = 0; i < existingEpics; i++) {
+            JsonObject epic = new JsonObject();
+            epic.addProperty("name", i % 2 == 0 ? "Existing epic " + i : "5.0." + i + " Enhancements");
+            createEpic(epic);
+        }
+        for (int i = 0; i < existingStories; i++) {
+            JsonObject story = new JsonObject();
+            story.addProperty("name", "Existing story " + i);
+            story.addProperty("project_id", PROJECT_ID);
+            story.addProperty("external_id", "https://example.com/existing/" + i);
+            story.addProperty("workflow_state_id", i % 2 == 0 ? COMPLETED_STATE_ID : COMPLETED_STATE_ID - 2);
+            story.addProperty("completed_at", i % 2 == 0 ? Instant.parse("2018-01-01T00:00:00Z").plusSeconds(60L * i).toString() : null);
+            story.addProperty("updated_at", Instant.parse("2018-01-01T00:00:00Z").plusSeconds(60L * i).toString());
+            story.addProperty("archived", false);
+            story.addProperty("id", nextId.incrementAndGet());
+            stories.put(story.get("id").getAsLong(), story);
+        }
+
+        server.route("GET", ".*/projects", "GET projects", request -> StubServer.Response.ok(gson.toJson(listProjects())));
+        server.route("GET", ".*/teams/(\\d+)", "GET teams/{id}", request -> StubServer.Response.ok(gson.toJson(getTeam())));
+        server.route("GET", ".*/members", "GET members", request -> StubServer.Response.ok(gson.toJson(members)));
+        server.route("GET", ".*/epic-workflow", "GET epic-workflow", request -> StubServer.Response.ok(gson.toJson(getEpicWorkflow())));
+
+        server.route("GET", ".*/epics", "GET epics", request -> StubServer.Response.ok(gson.toJson(listEpics())));
+        server.route("POST", ".*/epics", "POST epics", request -> created(createEpic(parse(request))));
+        server.route("PUT", ".*/epics/(\\d+)", "PUT epics/{id}", request -> update(epics, request));
+        server.route("DELETE", ".*/epics/(\\d+)", "DELETE epics/{id}", request -> delete(epics, request));
+
+        server.route("GET", ".*/labels", "GET labels", request -> StubServer.Response.ok(gson.toJson(labels.values())));
+        server.route("POST", ".*/labels", "POST labels", request -> created(create(labels, parse(request))));
+        server.route("DELETE", ".*/labels/(\\d+)", "DELETE labels/{id}", request -> delete(labels, request));
+
+        server.route("GET", ".*/milestones", "GET milestones", request -> StubServer.Response.ok(gson.toJson(milestones)));
+        server.route("POST", ".*/milestones", "POST milestones", request -> created(createMilestone(parse(request))));
+        server.route("PUT", ".*/milestones/(\\d+)", "PUT milestones/{id}", this::updateMilestone);
+        server.route("DELETE", ".*/milestones/(\\d+)", "DELETE milestones/{id}", request -> {
+            long id = Long.parseLong(request.path(1));
+            milestones.removeIf(milestone -> milestone.get("id").getAsLong() == id);
+            return StubServer.Response.status(204, null);
+        });
+
+        server.route("POST", ".*/stories/search", "POST stories/search", request -> StubServer.Response.ok(gson.toJson(searchStories(parse(request)))));
+        server.route("PUT", ".*/stories/bulk", "PUT stories/bulk", request -> StubServer.Response.ok(gson.toJson(updateStories(parse(request)))));
+        server.route("DELETE", ".*/stories/bulk", "DELETE stories/bulk", request -> {
+            for (JsonElement id : parse(request).getAsJsonArray("story_ids")) {
+                stories.remove(id.getAsLong());
+            }
+            return StubServer.Response.status(204, null);
+        });
+        server.route("POST", ".*/stories/bulk", "POST stories/bulk", request -> {
+            JsonArray created = new JsonArray();
+            for (JsonElement story : parse(request).getAsJsonArray("stories")) {
+                created.add(createStory(story.getAsJsonObject()));
+            }
+            return StubServer.Response.status(201, gson.toJson(created));
+        });
+        server.route("POST", ".*/stories", "POST stories", request -> created(createStory(parse(request))));
+        server.route("PUT", ".*/stories/(\\d+)", "PUT stories/{id}", request -> update(stories, request));
+
+        server.route("GET", ".*/linked-files", "GET linked-files", request -> StubServer.Response.ok(gson.toJson(linkedFiles.values())));
+        server.route("POST", ".*/linked-files", "POST linked-files", request -> created(create(linkedFiles, parse(request))));
+        server.route("DELETE", ".*/linked-files/(\\d+)", "DELETE linked-files/{id}", request -> delete(linkedFiles, request));
+    }
+
+    int getStoryCount() {
+        return stories.size();
+    }
+
+    private JsonArray listProjects() {
+        JsonObject project = new JsonObject();
+        project.addProperty("id", PROJECT_ID);
+        project.addProperty("name", PROJECT_NAME);
+        project.addProperty("team_id", TEAM_ID);
+        JsonArray projects = new JsonArray();
+        projects.add(project);
+        return projects;
+    }
+
+    private JsonObject getTeam() {
+        JsonArray states = new JsonArray();
+        String[][] stateDefinitions = {{"Unscheduled", "unstarted"}, {"Ready for Development", "unstarted"}, {"In Development", "started"}, {"Ready for Review", "started"}, {"Completed", "done"}};
+        for (int i = 0; i < stateDefinitions.length; i++) {
+            states.add(state(COMPLETED_STATE_ID - stateDefinitions.length + 1 + i, stateDefinitions[i][0], stateDefinitions[i][1]));
+        }
+        JsonObject workflow = new JsonObject();
+        workflow.add("states", states);
+        JsonObject team = new JsonObject();
+        team.addProperty("id", TEAM_ID);
+        team.addProperty("name", "R&D");
+        team.add("workflow", workflow);
+        return team;
+    }
+
+    private JsonObject getEpicWorkflow() {
+        JsonArray states = new JsonArray();
+        states.add(state(EPIC_DONE_STATE_ID - 2, "To Do", "unstarted"));
+        states.add(state(EPIC_DONE_STATE_ID - 1, "In Progress", "started"));
+        states.add(state(EPIC_DONE_STATE_ID, "Done", "done"));
+        JsonObject workflow = new JsonObject();
+        workflow.add("epic_states", states);
+        return workflow;
+    }
+
+    private static JsonObject state(long id, String name, String type) {
+        JsonObject state = new JsonObject();
+        state.addProperty("id", id);
+        state.addProperty("name", name);
+        state.addProperty("type", type);
+        return state;
+    }
+
+    private List<JsonObject> listEpics() {
+        List<JsonObject> result = new ArrayList<>();
+        for (JsonObject epic : epics.values()) {
+            int done = 0;
+            int started = 0;
+            int unstarted = 0;
+            for (JsonObject story : stories.values()) {
+                if (isLong(story, "epic_id") && story.get("epic_id").getAsLong() == epic.get("id").getAsLong()) {
+                    long stateId = isLong(story, "workflow_state_id") ? story.get("workflow_state_id").getAsLong() : COMPLETED_STATE_ID - 4;
+                    if (stateId == COMPLETED_STATE_ID) {
+                        done++;
+                    } else if (stateId >= COMPLETED_STATE_ID - 2) {
+                        started++;
+                    } else {
+                        unstarted++;
+                    }
+                }
+            }
+            JsonObject stats = new JsonObject();
+            stats.addProperty("num_stories_done", done);
+            stats.addProperty("num_stories_started", started);
+            stats.addProperty("num_stories_unstarted", unstarted);
+            JsonObject listed = epic.deepCopy();
+            listed.add("stats", stats);
+            listed.addProperty("completed", isLong(epic, "epic_state_id") && epic.get("epic_state_id").getAsLong() == EPIC_DONE_STATE_ID);
+            result.add(listed);
+        }
+        return result;
+    }
+
+    private JsonObject createEpic(JsonObject epic) {
+        epic.addProperty("archived", false);
+        epic.addProperty("state", "to do");
+        epic.addProperty("epic_state_id", EPIC_DONE_STATE_ID - 2);
+        return create(epics, epic);
+    }
+
+    private JsonObject createMilestone(JsonObject milestone) {
+        milestone.addProperty("id", nextId.incrementAndGet());
+        milestones.add(milestone);
+        return milestone;
+    }
+
+    private synchronized StubServer.Response updateMilestone(StubServer.Request request) throws IOException {
+        long id = Long.parseLong(request.path(1));
+        JsonObject params = parse(request);
+        JsonObject milestone = milestones.stream().filter(m -> m.get("id").getAsLong() == id).findAny().orElse(null);
+        if (milestone == null) {
+            return StubServer.Response.status(404, "{\"message\": \"Not Found\"}");
+        }
+        Long beforeId = isLong(params, "before_id") ? params.remove("before_id").getAsLong() : null;
+        Long afterId = isLong(params, "after_id") ? params.remove("after_id").getAsLong() : null;
+        merge(milestone, params);
+        if (beforeId != null || afterId != null) {
+            milestones.remove(milestone);
+            long anchorId = beforeId != null ? beforeId : afterId;
+            int anchor = 0;
+            for (int i = 0; i < milestones.size(); i++) {
+                if (milestones.get(i).get("id").getAsLong() == anchorId) {
+                    anchor = beforeId != null ? i : i + 1;
+                }
+            }
+            milestones.add(anchor, milestone);
+        }
+        return StubServer.Response.ok(gson.toJson(milestone));
+    }
+
+    private JsonObject createStory(JsonObject story) {
+        story.remove("comments");
+        story.remove("tasks");
+        story.addProperty("archived", false);
+        if (isLong(story, "workflow_state_id") && story.get("workflow_state_id").getAsLong() == COMPLETED_STATE_ID) {
+            story.addProperty("completed_at", Instant.now().toString());
+        }
+        JsonObject created = create(stories, story);
+        report.itemDone(isString(story, "external_id") ? story.get("external_id").getAsString() : null);
+        return created;
+    }
+
+    private List<JsonObject> searchStories(JsonObject params) {
+        List<JsonObject> result = new ArrayList<>();
+        for (JsonObject story : stories.values()) {
+            if (params.has("archived") && !params.get("archived").isJsonNull() && params.get("archived").getAsBoolean() != story.get("archived").getAsBoolean()) {
+                continue;
+            }
+            if (isLong(params, "project_id") && (!isLong(story, "project_id") || params.get("project_id").getAsLong() != story.get("project_id").getAsLong())) {
+                continue;
+            }
+            if (!isBetween(story, "completed_at", params) || !isBetween(story, "updated_at", params)) {
+                continue;
+            }
+            result.add(story);
+            // Like Clubhouse, truncate the results.
+            if (result.size() == StorySearch.MAX_RESULTS) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isBetween(JsonObject story, String field, JsonObject params) {
+        Instant start = isString(params, field + "_start") ? Instant.parse(params.get(field + "_start").getAsString()) : null;
+        Instant end = isString(params, field + "_end") ? Instant.parse(params.get(field + "_end").getAsString()) : null;
+        if (start == null && end == null) {
+            return true;
+        }
+        if (!isString(story, field)) {
+            return false;
+        }
+        Instant date = Instant.parse(story.get(field).getAsString());
+        return (start == null || !date.isBefore(start)) && (end == null || !date.isAfter(end));
+    }
+
+    private List<JsonObject> updateStories(JsonObject params) {
+        Set<Long> ids = new HashSet<>();
+        for (JsonElement id : params.remove("story_ids").getAsJsonArray()) {
+            ids.add(id.getAsLong());
+        }
+        List<JsonObject> result = new ArrayList<>();
+        for (Long id : ids) {
+            JsonObject story = stories.get(id);
+            if (story != null) {
+                merge(story, params);
+                result.add(story);
+            }
+        }
+        return result;
+    }
+
+    private JsonObject create(Map<Long, JsonObject> entities, JsonObject entity) {
+        long id = nextId.incrementAndGet();
+        entity.addProperty("updated_at", Instant.now().toString());
+        entity.addProperty("id", id);
+        entities.put(id, entity);
+        return entity;
+    }
+
+    private StubServer.Response update(Map<Long, JsonObject> entities, StubServer.Request request) throws IOException {
+        JsonObject entity = entities.get(Long.parseLong(request.path(1)));
+        if (entity == null) {
+            return StubServer.Response.status(404, "{\"message\": \"Not Found\"}");
+        }
+        merge(entity, parse(request));
+        return StubServer.Response.ok(gson.toJson(entity));
+    }
+
+    private static StubServer.Response delete(Map<Long, JsonObject> entities, StubServer.Request request) {
+        return entities.remove(Long.parseLong(request.path(1))) == null
+                ? StubServer.Response.status(404, "{\"message\": \"Not Found\"}")
+                : StubServer.Response.status(204, null);
+    }
+
+    private StubServer.Response created(JsonObject entity) {
+        return StubServer.Response.status(201, gson.toJson(entity));
+    }
+
+    private static void merge(JsonObject entity, JsonObject params) {
+        synchronized (entity) {
+            entity.addProperty("updated_at", Instant.now().toString());
+            for (Map.Entry<String, JsonElement> field : params.entrySet()) {
+                if (!field.getValue().isJsonNull()) {
+                    entity.add(field.getKey(), field.getValue());
+                }
+            }
+        }
+    }
+
+    private static JsonObject parse(StubServer.Request request) throws IOException {
+        String body = request.body();
+        return body.isEmpty() ? new JsonObject() : new JsonParser().parse(body).getAsJsonObject();
+    }
+
+    private static boolean isLong(JsonObject object, String field) {
+        return object.has(field) && object.get(field).isJsonPrimitive() && object.get(field).getAsJsonPrimitive().isNumber();
+    }
+
+    private static boolean isString(JsonObject object, String field) {
+        return object.has(field) && object.get(field).isJsonPrimitive() && object.get(field).getAsJsonPrimitive().isString();
+    }
+}
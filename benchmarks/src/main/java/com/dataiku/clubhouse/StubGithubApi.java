@@ -0,0 +1,202 @@
+package com.dataiku.clubhouse;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Joiner;
+import com.google.common.net.UrlEscapers;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Github repository {@value #OWNER}/{@value #REPOSITORY} with synthetic issues and comments, speaking the part of the
+ * v3 API used by {@link GithubMigration}. Issues are listed in pages linked by {@code Link} headers, as Github does.
+ */
+class StubGithubApi {
+
+    static final String OWNER = "dataiku";
+    static final String REPOSITORY = "dip";
+
+    private static final String BASE_URL = "https://api.github.com";
+    private static final String REPOSITORY_PATH = "/repos/" + OWNER + "/" + REPOSITORY;
+    private static final String[] LABELS = {"bug", "component:recipes", "component:flow", "priority:high", "needs-info"};
+    private static final Instant EPOCH = Instant.parse("2018-01-01T00:00:00Z");
+
+    private final Gson gson = new Gson();
+    private final ThroughputReport report;
+    private final List<JsonObject> issues = new ArrayList<>();
+    private final List<JsonObject> comments = new ArrayList<>();
+
+    StubGithubApi(StubServer server, ThroughputReport report, int issueCount, int commentsPerIssue, int memberCount) {
+        this.report = report;
+        for (int number = 1; number <= issueCount; number++) {
+            issues.add(issue(number, commentsPerIssue, memberCount));
+            for (int i = 0; i < commentsPerIssue; i++) {
+                comments.add(comment(number, i, memberCount));
+            }
+        }
+
+        server.route("GET", "/user/repos", "GET user/repos", request -> page(request, singletonRepository(), "/user/repos"));
+        server.route("GET", REPOSITORY_PATH + "/issues", "GET issues", request -> page(request, filterIssues(request.queryParameters()), REPOSITORY_PATH + "/issues"));
+        server.route("GET", REPOSITORY_PATH + "/issues/comments", "GET issues/comments", request -> page(request, filterSince(comments, request.query("since")), REPOSITORY_PATH + "/issues/comments"));
+        server.route("GET", REPOSITORY_PATH + "/issues/(\\d+)/comments", "GET issues/{number}/comments", request -> {
+            String issueUrl = BASE_URL + REPOSITORY_PATH + "/issues/" + request.path(1);
+            List<JsonObject> issueComments = comments.stream().filter(c -> issueUrl.equals(c.get("issue_url").getAsString())).collect(Collectors.toList());
+            return page(request, issueComments, REPOSITORY_PATH + "/issues/" + request.path(1) + "/comments");
+        });
+        server.route("GET", REPOSITORY_PATH + "/issues/(\\d+)", "GET issues/{number}", request -> {
+            int number = Integer.parseInt(request.path(1));
+            return number >= 1 && number <= issues.size()
+                    ? StubServer.Response.ok(gson.toJson(issues.get(number - 1)))
+                    : StubServer.Response.status(404, "{\"message\": \"Not Found\"}");
+        });
+        server.route("GET", REPOSITORY_PATH + "/labels", "GET labels", request -> page(request, labels(), REPOSITORY_PATH + "/labels"));
+        server.route("GET", "/users/([^/]+)", "GET users/{login}", request -> StubServer.Response.ok(gson.toJson(user(request.path(1)))));
+    }
+
+    private List<JsonObject> singletonRepository() {
+        JsonObject owner = new JsonObject();
+        owner.addProperty("login", OWNER);
+        JsonObject repository = new JsonObject();
+        repository.addProperty("id", 1);
+        repository.addProperty("name", REPOSITORY);
+        repository.add("owner", owner);
+        List<JsonObject> repositories = new ArrayList<>();
+        repositories.add(repository);
+        return repositories;
+    }
+
+    private List<JsonObject> labels() {
+        List<JsonObject> labels = new ArrayList<>();
+        for (String name : LABELS) {
+            labels.add(label(name));
+        }
+        return labels;
+    }
+
+    private List<JsonObject> filterIssues(Map<String, String> query) {
+        String state = query.getOrDefault("state", "open");
+        List<JsonObject> listed = issues.stream()
+                .filter(issue -> "all".equals(state) || state.equals(issue.get("state").getAsString()))
+                .collect(Collectors.toList());
+        listed = filterSince(listed, query.get("since"));
+        if ("updated".equals(query.get("sort"))) {
+            listed.sort(Comparator.comparing(issue -> issue.get("updated_at").getAsString()));
+        }
+        if (!"asc".equals(query.get("direction"))) {
+            listed = reversed(listed);
+        }
+        return listed;
+    }
+
+    private static List<JsonObject> filterSince(List<JsonObject> objects, String since) {
+        if (since == null) {
+            return objects;
+        }
+        Instant sinceInstant = Instant.parse(since);
+        return objects.stream()
+                .filter(object -> !Instant.parse(object.get("updated_at").getAsString()).isBefore(sinceInstant))
+                .collect(Collectors.toList());
+    }
+
+    private static List<JsonObject> reversed(List<JsonObject> objects) {
+        List<JsonObject> result = new ArrayList<>(objects.size());
+        for (int i = objects.size() - 1; i >= 0; i--) {
+            result.add(objects.get(i));
+        }
+        return result;
+    }
+
+    private StubServer.Response page(StubServer.Request request, List<JsonObject> objects, String path) {
+        int page = request.query("page", 1);
+        int perPage = request.query("per_page", 30);
+        int from = Math.min((page - 1) * perPage, objects.size());
+        int to = Math.min(from + perPage, objects.size());
+        JsonArray body = new JsonArray();
+        for (JsonObject object : objects.subList(from, to)) {
+            body.add(object);
+            if (object.has("html_url") && object.has("number")) {
+                report.itemSeen(object.get("html_url").getAsString());
+            }
+        }
+        StubServer.Response response = StubServer.Response.ok(gson.toJson(body));
+        if (to < objects.size()) {
+            Map<String, String> query = request.queryParameters();
+            int lastPage = (objects.size() + perPage - 1) / perPage;
+            response.header("Link", link(path, query, page + 1, "next") + ", " + link(path, query, lastPage, "last"));
+        }
+        return response;
+    }
+
+    private static String link(String path, Map<String, String> query, int page, String rel) {
+        query.put("page", String.valueOf(page));
+        List<String> parameters = new ArrayList<>();
+        query.forEach((name, value) -> parameters.add(name + "=" + UrlEscapers.urlFormParameterEscaper().escape(value)));
+        return "<" + BASE_URL + path + "?" + Joiner.on('&').join(parameters) + ">; rel=\"" + rel + "\"";
+    }
+
+    private static JsonObject issue(int number, int commentCount, int memberCount) {
+        Instant createdAt = EPOCH.plus(number, ChronoUnit.HOURS);
+        boolean closed = number % 3 == 0;
+        JsonObject issue = new JsonObject();
+        issue.addProperty("number", number);
+        issue.addProperty("title", "Issue " + number + ": job fails on partitioned datasets");
+        issue.addProperty("body", BenchmarkFixtures.githubBody(3));
+        issue.addProperty("state", closed ? "closed" : "open");
+        issue.addProperty("html_url", "https://github.com/" + OWNER + "/" + REPOSITORY + "/issues/" + number);
+        issue.addProperty("created_at", createdAt.toString());
+        issue.addProperty("updated_at", createdAt.plus(1, ChronoUnit.DAYS).toString());
+        if (closed) {
+            issue.addProperty("closed_at", createdAt.plus(1, ChronoUnit.DAYS).toString());
+        }
+        issue.addProperty("comments", commentCount);
+        issue.add("user", user("user" + (number % memberCount)));
+        issue.add("assignee", user("user" + ((number * 7) % memberCount)));
+        JsonArray labels = new JsonArray();
+        labels.add(label(LABELS[number % LABELS.length]));
+        labels.add(label(LABELS[(number / LABELS.length) % LABELS.length]));
+        issue.add("labels", labels);
+        if (number % 4 == 0) {
+            JsonObject milestone = new JsonObject();
+            milestone.addProperty("title", "V 5." + (number % 3) + ".0");
+            issue.add("milestone", milestone);
+        }
+        if (number % 10 == 0) {
+            JsonObject pullRequest = new JsonObject();
+            pullRequest.addProperty("html_url", "https://github.com/" + OWNER + "/" + REPOSITORY + "/pull/" + number);
+            issue.add("pull_request", pullRequest);
+        }
+        return issue;
+    }
+
+    private static JsonObject comment(int issueNumber, int index, int memberCount) {
+        Instant createdAt = EPOCH.plus(issueNumber, ChronoUnit.HOURS).plus(index + 1, ChronoUnit.MINUTES);
+        JsonObject comment = new JsonObject();
+        comment.addProperty("id", (long) issueNumber * 1000 + index);
+        comment.addProperty("body", "Comment " + index + " on issue " + issueNumber + ", the job still fails with 1 < 2.");
+        comment.addProperty("created_at", createdAt.toString());
+        comment.addProperty("updated_at", createdAt.toString());
+        comment.addProperty("issue_url", BASE_URL + REPOSITORY_PATH + "/issues/" + issueNumber);
+        comment.add("user", user("user" + ((issueNumber + index) % memberCount)));
+        return comment;
+    }
+
+    private static JsonObject user(String login) {
+        JsonObject user = new JsonObject();
+        user.addProperty("login", login);
+        return user;
+    }
+
+    private static JsonObject label(String name) {
+        JsonObject label = new JsonObject();
+        label.addProperty("name", name);
+        label.addProperty("color", "d73a4a");
+        return label;
+    }
+}
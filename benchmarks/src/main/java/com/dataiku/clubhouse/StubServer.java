@@ -0,0 +1,322 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server standing in for one of the remote APIs. Requests are routed by method and path to the handlers of
+ * the stub, after the configured latency, error rate and rate limit have been applied.
+ */
+class StubServer {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.benchmark.stub");
+
+    /**
+     * How a rate-limited request is answered, as each API does it.
+     */
+    enum RateLimitStyle {
+        // 429 Too Many Requests with a Retry-After header (Trello, Clubhouse).
+        TOO_MANY_REQUESTS,
+        // 403 Forbidden with exhausted X-RateLimit headers (Github).
+        GITHUB
+    }
+
+    interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    private final String name;
+    private final StubBehaviour behaviour;
+    private final RateLimitStyle rateLimitStyle;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<Route> routes = new ArrayList<>();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final RateLimitWindow rateLimitWindow;
+
+    StubServer(String name, StubBehaviour behaviour, RateLimitStyle rateLimitStyle) throws IOException {
+        this.name = name;
+        this.behaviour = behaviour;
+        this.rateLimitStyle = rateLimitStyle;
+        this.rateLimitWindow = new RateLimitWindow(behaviour.rateLimitPerSecond);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        // Latency is simulated with sleeps, so the server needs as many threads as there are concurrent requests.
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat(name + "-stub-%d").setDaemon(true).build());
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::dispatch);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void route(String method, String pathPattern, String endpoint, Handler handler) {
+        routes.add(new Route(method, Pattern.compile(pathPattern), endpoint, handler));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of requests received by endpoint, sorted by endpoint.
+     */
+    Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        requestCounts.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try {
+            Response response = handle(exchange);
+            byte[] body = response.body == null ? new byte[0] : response.body.getBytes(StandardCharsets.UTF_8);
+            response.headers.forEach((header, value) -> exchange.getResponseHeaders().set(header, value));
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, name + " stub failed to answer " + exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Route route = null;
+        Matcher matcher = null;
+        for (Route candidate : routes) {
+            matcher = candidate.pathPattern.matcher(path);
+            if (candidate.method.equals(method) && matcher.matches()) {
+                route = candidate;
+                break;
+            }
+        }
+        String endpoint = route == null ? method + " (unmatched) " + path : route.endpoint;
+        requestCounts.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+
+        sleep(behaviour.latencyMillis + (behaviour.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(behaviour.jitterMillis) : 0));
+        long remaining = rateLimitWindow.acquire();
+        if (remaining < 0) {
+            requestCounts.computeIfAbsent("(rate limited)", e -> new AtomicLong()).incrementAndGet();
+            return rateLimited();
+        }
+        if (behaviour.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < behaviour.errorRate) {
+            requestCounts.computeIfAbsent("(failed)", e -> new AtomicLong()).incrementAndGet();
+            return withRateLimit(Response.status(502, "{\"message\": \"Injected failure\"}"), remaining);
+        }
+        if (route == null) {
+            return Response.status(404, "{\"message\": \"Not Found\"}");
+        }
+
+        Request request = new Request(exchange, matcher);
+        return withRateLimit(route.handler.handle(request), remaining);
+    }
+
+    private Response withRateLimit(Response response, long remaining) {
+        if (rateLimitStyle == RateLimitStyle.GITHUB && rateLimitWindow.isLimited()) {
+            response.headers.put("X-RateLimit-Remaining", String.valueOf(remaining));
+            response.headers.put("X-RateLimit-Reset", String.valueOf(rateLimitWindow.getResetEpochSecond()));
+        }
+        return response;
+    }
+
+    private Response rateLimited() {
+        Response response;
+        if (rateLimitStyle == RateLimitStyle.GITHUB) {
+            response = Response.status(403, "{\"message\": \"API rate limit exceeded\"}");
+            response.headers.put("X-RateLimit-Remaining", "0");
+            response.headers.put("X-RateLimit-Reset", String.valueOf(rateLimitWindow.getResetEpochSecond()));
+        } else {
+            response = Response.status(429, "{\"message\": \"Too Many Requests\"}");
+            response.headers.put("Retry-After", "1");
+        }
+        return response;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Route {
+        private final String method;
+        private final Pattern pathPattern;
+        private final String endpoint;
+        private final Handler handler;
+
+        Route(String method, Pattern pathPattern, String endpoint, Handler handler) {
+            this.method = method;
+            this.pathPattern = pathPattern;
+            this.endpoint = endpoint;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Fixed one second windows of {@code limit} requests, as the rate limits of the APIs are enforced.
+     */
+    private static class RateLimitWindow {
+        private final int limit;
+        private long windowStart;
+        private long used;
+
+        RateLimitWindow(int limit) {
+            this.limit = limit;
+        }
+
+        boolean isLimited() {
+            return limit > 0;
+        }
+
+        /**
+         * Returns the requests remaining in the current window, or -1 if the request is rate limited.
+         */
+        synchronized long acquire() {
+            if (limit <= 0) {
+                return Long.MAX_VALUE;
+            }
+            long now = System.currentTimeMillis() / 1000;
+            if (now != windowStart) {
+                windowStart = now;
+                used = 0;
+            }
+            if (used >= limit) {
+                return -1;
+            }
+            used++;
+            return limit - used;
+        }
+
+        synchronized long getResetEpochSecond() {
+            return windowStart + 1;
+        }
+    }
+
+    static class Request {
+        private final HttpExchange exchange;
+        private final Matcher pathMatcher;
+        private final Map<String, String> query;
+
+        Request(HttpExchange exchange, Matcher pathMatcher) {
+            this.exchange = exchange;
+            this.pathMatcher = pathMatcher;
+            this.query = parseQuery(exchange.getRequestURI().getRawQuery());
+        }
+
+        String path(int group) {
+            return pathMatcher.group(group);
+        }
+
+        String query(String name) {
+            return query.get(name);
+        }
+
+        int query(String name, int defaultValue) {
+            String value = query.get(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        Map<String, String> queryParameters() {
+            return new TreeMap<>(query);
+        }
+
+        String body() throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+            }
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> query = new HashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                String value = separator < 0 ? "" : parameter.substring(separator + 1);
+                query.put(decode(name), decode(value));
+            }
+            return query;
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static class Response {
+        private final int status;
+        private final String body;
+        private final Map<String, String> headers = new HashMap<>();
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Response ok(String body) {
+            return new Response(200, body);
+        }
+
+        static Response status(int status, String body) {
+            return new Response(status, body);
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.dataiku.clubhouse;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Trello organization {@value #ORGANIZATION} with synthetic boards, speaking the part of the v1 API used by
+ * {@link TrelloMigration}. Actions are listed newest first and paged with {@code before=}, as Trello does.
+ */
+class StubTrelloApi {
+
+    static final String ORGANIZATION = "dataikurd";
+    static final String[] LISTS = {"To Do", "Doing", "Done", "Archive"};
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final Instant EPOCH = Instant.parse("2018-01-01T00:00:00Z");
+
+    private final Gson gson = new Gson();
+    private final ThroughputReport report;
+    private final List<JsonObject> boards = new ArrayList<>();
+    private final Map<String, List<JsonObject>> listsByBoard = new HashMap<>();
+    private final Map<String, List<JsonObject>> cardsByBoard = new HashMap<>();
+    private final Map<String, JsonObject> cards = new HashMap<>();
+    private final Map<String, List<JsonObject>> actionsByCard = new HashMap<>();
+    private final Map<String, List<JsonObject>> checklistsByCard = new HashMap<>();
+    private final Map<String, List<JsonObject>> attachmentsByCard = new HashMap<>();
+
+    StubTrelloApi(StubServer server, ThroughputReport report, int boardCount, int cardsPerBoard, int commentsPerCard, int memberCount) {
+        this.report = report;
+        for (int b = 0; b < boardCount; b++) {
+            createBoard(b, cardsPerBoard, commentsPerCard, memberCount);
+        }
+
+        server.route("GET", "/1/organizations/([^/]+)/boards", "GET organizations/{id}/boards", request -> ok(boards));
+        server.route("GET", "/1/boards/([^/]+)", "GET boards/{id}", request -> ok(find(boards, request.path(1))));
+        server.route("GET", "/1/boards/([^/]+)/lists", "GET boards/{id}/lists", request -> ok(listsByBoard.get(request.path(1))));
+        server.route("GET", "/1/boards/([^/]+)/cards", "GET boards/{id}/cards", request -> {
+            List<JsonObject> boardCards = cardsByBoard.get(request.path(1));
+            if (boardCards != null) {
+                boardCards.forEach(card -> report.itemSeen(card.get("url").getAsString()));
+            }
+            return ok(boardCards);
+        });
+        server.route("GET", "/1/boards/([^/]+)/checklists", "GET boards/{id}/checklists", request -> ok(cardsByBoard.getOrDefault(request.path(1), new ArrayList<>()).stream()
+                .flatMap(card -> checklistsByCard.get(card.get("id").getAsString()).stream())
+                .collect(Collectors.toList())));
+        server.route("GET", "/1/boards/([^/]+)/actions", "GET boards/{id}/actions", request -> {
+            List<JsonObject> boardActions = cardsByBoard.getOrDefault(request.path(1), new ArrayList<>()).stream()
+                    .flatMap(card -> actionsByCard.get(card.get("id").getAsString()).stream())
+                    .collect(Collectors.toList());
+            return actionsPage(request, boardActions);
+        });
+        server.route("GET", "/1/cards/([^/]+)", "GET cards/{id}", request -> ok(cards.get(request.path(1))));
+        server.route("GET", "/1/cards/([^/]+)/actions", "GET cards/{id}/actions", request -> actionsPage(request, actionsByCard.getOrDefault(request.path(1), new ArrayList<>())));
+        server.route("GET", "/1/cards/([^/]+)/checklists", "GET cards/{id}/checklists", request -> ok(checklistsByCard.get(request.path(1))));
+        server.route("GET", "/1/cards/([^/]+)/attachments", "GET cards/{id}/attachments", request -> ok(attachmentsByCard.get(request.path(1))));
+        server.route("GET", "/1/lists/([^/]+)", "GET lists/{id}", request -> ok(listsByBoard.values().stream()
+                .flatMap(List::stream)
+                .filter(list -> request.path(1).equals(list.get("id").getAsString()))
+                .findAny().orElse(null)));
+        server.route("GET", "/1/members/([^/]+)", "GET members/{id}", request -> ok(member(request.path(1))));
+    }
+
+    /**
+     * Migration parameters migrating all the boards, with their lists as labels except the archive list.
+     */
+    static TrelloMigrationParams migrationParams(int boardCount) {
+        TrelloMigrationParams params = new TrelloMigrationParams();
+        params.boards = new ArrayList<>();
+        for (int b = 0; b < boardCount; b++) {
+            params.boards.add(new TrelloBoardMigrationParams(boardName(b), true, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_LABELS));
+        }
+        params.ignoredLists = new ArrayList<>();
+        params.ignoredLists.add("Archive");
+        params.labelsMapping = new HashMap<>();
+        params.usersMapping = new HashMap<>();
+        return params;
+    }
+
+    private static String boardName(int b) {
+        return "Board " + b;
+    }
+
+    private void createBoard(int b, int cardCount, int commentsPerCard, int memberCount) {
+        String boardId = String.format("b%023d", b);
+        JsonObject board = new JsonObject();
+        board.addProperty("id", boardId);
+        board.addProperty("name", boardName(b));
+        board.addProperty("closed", false);
+        boards.add(board);
+
+        List<JsonObject> lists = new ArrayList<>();
+        for (int l = 0; l < LISTS.length; l++) {
+            JsonObject list = new JsonObject();
+            list.addProperty("id", String.format("l%07d%016d", b, l));
+            list.addProperty("name", LISTS[l]);
+            list.addProperty("idBoard", boardId);
+            list.addProperty("closed", false);
+            lists.add(list);
+        }
+        listsByBoard.put(boardId, lists);
+
+        List<JsonObject> boardCards = new ArrayList<>();
+        for (int c = 0; c < cardCount; c++) {
+            // Trello ids start with the creation time in seconds, in hexadecimal.
+            Instant createdAt = EPOCH.plus((long) b * cardCount + c, ChronoUnit.MINUTES);
+            String cardId = String.format("%08x%08x%08x", createdAt.getEpochSecond(), b, c);
+            int attachments = c % 5 == 0 ? 2 : 0;
+            JsonObject card = card(cardId, boardId, lists.get(c % lists.size()).get("id").getAsString(), c, createdAt, attachments, memberCount);
+            boardCards.add(card);
+            cards.put(cardId, card);
+            actionsByCard.put(cardId, actions(card, createdAt, commentsPerCard, memberCount));
+            checklistsByCard.put(cardId, checklists(cardId));
+            attachmentsByCard.put(cardId, attachments(cardId, attachments, memberCount));
+        }
+        cardsByBoard.put(boardId, boardCards);
+    }
+
+    private static JsonObject card(String cardId, String boardId, String listId, int c, Instant createdAt, int attachments, int memberCount) {
+        JsonObject badges = new JsonObject();
+        badges.addProperty("attachments", attachments);
+        JsonArray labels = new JsonArray();
+        labels.add(cardLabel(c % 3 == 0 ? "Bug" : "Feature", c % 3 == 0 ? "red" : "green"));
+        JsonArray members = new JsonArray();
+        members.add("member" + (c % memberCount));
+        JsonObject card = new JsonObject();
+        card.addProperty("id", cardId);
+        card.addProperty("name", "Card " + c + " of board " + boardId);
+        card.addProperty("desc", "Description of card " + c + ".\n\nIt should be migrated with its comments.");
+        card.addProperty("url", "https://trello.com/c/" + cardId + "/" + c);
+        card.addProperty("idBoard", boardId);
+        card.addProperty("idList", listId);
+        card.addProperty("closed", c % 7 == 0);
+        card.addProperty("dateLastActivity", DATE_FORMAT.format(createdAt.plus(2, ChronoUnit.DAYS)));
+        card.add("labels", labels);
+        card.add("idMembers", members);
+        card.add("badges", badges);
+        return card;
+    }
+
+    private static JsonObject cardLabel(String name, String color) {
+        JsonObject label = new JsonObject();
+        label.addProperty("name", name);
+        label.addProperty("color", color);
+        return label;
+    }
+
+    private static List<JsonObject> actions(JsonObject card, Instant createdAt, int commentCount, int memberCount) {
+        String cardId = card.get("id").getAsString();
+        List<JsonObject> actions = new ArrayList<>();
+        // Newest first, as Trello lists them.
+        for (int i = commentCount; i >= 0; i--) {
+            JsonObject cardReference = new JsonObject();
+            cardReference.addProperty("id", cardId);
+            JsonObject data = new JsonObject();
+            data.add("card", cardReference);
+            if (i > 0) {
+                data.addProperty("text", "Comment " + i + " on card " + cardId);
+            }
+            JsonObject action = new JsonObject();
+            action.addProperty("id", cardId + String.format("%04d", i));
+            action.addProperty("type", i > 0 ? "commentCard" : "createCard");
+            action.addProperty("date", DATE_FORMAT.format(createdAt.plus(i, ChronoUnit.HOURS)));
+            action.add("memberCreator", member("user" + ((cardId.hashCode() & 0xffff) + i) % memberCount));
+            action.add("data", data);
+            actions.add(action);
+        }
+        return actions;
+    }
+
+    private static List<JsonObject> checklists(String cardId) {
+        JsonArray items = new JsonArray();
+        for (int i = 0; i < 3; i++) {
+            JsonObject item = new JsonObject();
+            item.addProperty("id", cardId + "i" + i);
+            item.addProperty("name", "Task " + i);
+            item.addProperty("state", i == 0 ? "complete" : "incomplete");
+            item.addProperty("pos", (i + 1) * 16384);
+            items.add(item);
+        }
+        JsonObject checklist = new JsonObject();
+        checklist.addProperty("id", cardId + "c");
+        checklist.addProperty("idCard", cardId);
+        checklist.add("checkItems", items);
+        List<JsonObject> checklists = new ArrayList<>();
+        checklists.add(checklist);
+        return checklists;
+    }
+
+    private static List<JsonObject> attachments(String cardId, int count, int memberCount) {
+        List<JsonObject> attachments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            JsonObject attachment = new JsonObject();
+            attachment.addProperty("_id", cardId + "a" + i);
+            attachment.addProperty("name", "screenshot-" + i + ".png");
+            // The same files are attached to many cards.
+            attachment.addProperty("url", "https://trello-attachments.s3.amazonaws.com/shared/screenshot-" + i + ".png");
+            attachment.addProperty("bytes", 1024L * (i + 1));
+            attachment.addProperty("idMember", "member" + (i % memberCount));
+            attachments.add(attachment);
+        }
+        return attachments;
+    }
+
+    private static JsonObject member(String idOrUsername) {
+        String username = idOrUsername.startsWith("member") ? "user" + idOrUsername.substring("member".length()) : idOrUsername;
+        JsonObject member = new JsonObject();
+        member.addProperty("id", "member" + username.substring(Math.min(4, username.length())));
+        member.addProperty("username", username);
+        member.addProperty("fullName", "User Number " + username.substring(Math.min(4, username.length())));
+        return member;
+    }
+
+    private StubServer.Response actionsPage(StubServer.Request request, List<JsonObject> actions) {
+        String before = request.query("before");
+        int limit = request.query("limit", 50);
+        String filter = request.query("filter");
+        List<JsonObject> page = actions.stream()
+                .filter(action -> filter == null || "all".equals(filter) || filter.contains(action.get("type").getAsString()))
+                .filter(action -> before == null || action.get("id").getAsString().compareTo(before) < 0)
+                .sorted((a1, a2) -> a2.get("id").getAsString().compareTo(a1.get("id").getAsString()))
+                .limit(limit)
+                .collect(Collectors.toList());
+        return ok(page);
+    }
+
+    private static JsonObject find(List<JsonObject> objects, String id) {
+        return objects.stream().filter(object -> id.equals(object.get("id").getAsString())).findAny().orElse(null);
+    }
+
+    private StubServer.Response ok(Object body) {
+        return body == null ? StubServer.Response.status(404, "{\"message\": \"Not Found\"}") : StubServer.Response.ok(gson.toJson(body));
+    }
+}
@@ -0,0 +1,57 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends the HTTPS requests of the API clients to the local stubs instead of the real services. The clients build
+ * their URLs from hard-coded hosts, so requests are redirected by host at the {@link URL} level: any HTTPS request to
+ * a host without a stub fails, so that a benchmark can never reach a real service.
+ * <p>
+ * A JVM accepts a single {@link URLStreamHandlerFactory}: {@link #install()} can only be called once per JVM.
+ */
+final class StubUrlRedirector implements URLStreamHandlerFactory {
+
+    private static final StubUrlRedirector INSTANCE = new StubUrlRedirector();
+
+    private final Map<String, Integer> portsByHost = new ConcurrentHashMap<>();
+
+    private StubUrlRedirector() {
+    }
+
+    static StubUrlRedirector install() {
+        URL.setURLStreamHandlerFactory(INSTANCE);
+        return INSTANCE;
+    }
+
+    void redirect(String host, StubServer server) {
+        portsByHost.put(host, server.getPort());
+    }
+
+    @Override
+    public URLStreamHandler createURLStreamHandler(String protocol) {
+        if (!"https".equals(protocol)) {
+            return null; // Default handler
+        }
+        return new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) throws IOException {
+                Integer port = portsByHost.get(url.getHost());
+                if (port == null) {
+                    throw new IOException("No stub for " + url.getHost() + ", refusing to send " + url);
+                }
+                return new URL("http", "127.0.0.1", port, url.getFile()).openConnection();
+            }
+
+            @Override
+            protected int getDefaultPort() {
+                return 443;
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package com.dataiku.clubhouse;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Throughput of a migration run against the stubs. The latency of an item is measured from the moment its source
+ * (issue or card) is listed by a source stub to the moment its story is created in the Clubhouse stub.
+ */
+class ThroughputReport {
+
+    private final Map<String, Long> seenNanosByItem = new ConcurrentHashMap<>();
+    private final List<Long> latencyNanos = Collections.synchronizedList(new ArrayList<>());
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    void start() {
+        startNanos = System.nanoTime();
+    }
+
+    void stop() {
+        endNanos = System.nanoTime();
+    }
+
+    void itemSeen(String externalId) {
+        seenNanosByItem.putIfAbsent(externalId, System.nanoTime());
+    }
+
+    void itemDone(String externalId) {
+        Long seenNanos = externalId == null ? null : seenNanosByItem.get(externalId);
+        latencyNanos.add(seenNanos == null ? 0L : System.nanoTime() - seenNanos);
+    }
+
+    int getItemsDone() {
+        return latencyNanos.size();
+    }
+
+    void print(PrintStream out, String scenario, List<StubServer> servers) {
+        double seconds = (endNanos - startNanos) / 1e9;
+        List<Long> latencies;
+        synchronized (latencyNanos) {
+            latencies = new ArrayList<>(latencyNanos);
+        }
+        Collections.sort(latencies);
+        out.println();
+        out.println("== " + scenario + " ==");
+        out.printf("Items:        %d in %.1fs%n", latencies.size(), seconds);
+        out.printf("Throughput:   %.1f items/s%n", seconds > 0 ? latencies.size() / seconds : 0.0);
+        out.printf("Latency p50:  %.0f ms%n", percentile(latencies, 0.50) / 1e6);
+        out.printf("Latency p99:  %.0f ms%n", percentile(latencies, 0.99) / 1e6);
+        for (StubServer server : servers) {
+            long total = 0;
+            out.println("Requests to " + server.getName() + ":");
+            for (Map.Entry<String, Long> count : server.getRequestCounts().entrySet()) {
+                out.printf("  %8d  %s%n", count.getValue(), count.getKey());
+                if (!count.getKey().startsWith("(")) {
+                    total += count.getValue();
+                }
+            }
+            out.printf("  %8d  total%n", total);
+        }
+    }
+
+    private static double percentile(List<Long> sortedValues, double percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, Math.min(index, sortedValues.size() - 1)));
+    }
+}
@@ -0,0 +1,100 @@
+package com.dataiku.clubhouse;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.egit.github.core.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.clubhouse4j.api.v3beta.Member;
+
+/**
+ * Resolution of Github and Trello users into Clubhouse members. The cold benchmarks resolve each user for the first
+ * time, which scans the members; the warm ones hit the mapping cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserMappingBenchmark {
+
+    private static final int USERS = 100;
+
+    @Param({"1000", "10000"})
+    public int members;
+
+    private List<Member> clubhouseMembers;
+    private User[] githubUsers;
+    private org.trello4j.model.Member[] trelloMembers;
+    private GithubUserMapping warmGithubMapping;
+    private TrelloUserMapping warmTrelloMapping;
+
+    @Setup
+    public void setUp() {
+        clubhouseMembers = BenchmarkFixtures.clubhouseMembers(members);
+        githubUsers = new User[USERS];
+        trelloMembers = new org.trello4j.model.Member[USERS];
+        for (int i = 0; i < USERS; i++) {
+            // Spread the users over the whole member list, the last ones being the slowest to find.
+            int member = (int) ((long) members * (i + 1) / USERS) - 1;
+            githubUsers[i] = BenchmarkFixtures.githubUser(member);
+            trelloMembers[i] = BenchmarkFixtures.trelloMember(member);
+        }
+        warmGithubMapping = new GithubUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        warmTrelloMapping = new TrelloUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        for (int i = 0; i < USERS; i++) {
+            warmGithubMapping.getClubhouseMember(githubUsers[i]);
+            warmTrelloMapping.getClubhouseMember(trelloMembers[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void githubCold(Blackhole blackhole) {
+        GithubUserMapping mapping = new GithubUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        for (User user : githubUsers) {
+            blackhole.consume(mapping.getClubhouseMember(user));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void githubWarm(Blackhole blackhole) {
+        for (User user : githubUsers) {
+            blackhole.consume(warmGithubMapping.getClubhouseMember(user));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void trelloCold(Blackhole blackhole) {
+        TrelloUserMapping mapping = new TrelloUserMapping(clubhouseMembers, null, Collections.emptyMap());
+        for (org.trello4j.model.Member member : trelloMembers) {
+            blackhole.consume(mapping.getClubhouseMember(member));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public void trelloWarm(Blackhole blackhole) {
+        for (org.trello4j.model.Member member : trelloMembers) {
+            blackhole.consume(warmTrelloMapping.getClubhouseMember(member));
+        }
+    }
+}
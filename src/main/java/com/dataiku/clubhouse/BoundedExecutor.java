@@ -0,0 +1,50 @@
+package com.dataiku.clubhouse;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Fixed thread pool whose backlog of pending tasks is bounded: {@link #submit(Runnable)} blocks the producer while
+ * the backlog is full, so that a fast producer (e.g. an API pager) cannot get ahead of the workers.
+ */
+public class BoundedExecutor {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.executor");
+
+    private final ExecutorService executor;
+    private final Semaphore backlog;
+
+    public BoundedExecutor(int threads, int backlogSize) {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.backlog = new Semaphore(threads + backlogSize);
+    }
+
+    public void submit(Runnable task) throws InterruptedException {
+        backlog.acquire();
+        try {
+            executor.submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    backlog.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            backlog.release();
+            throw e;
+        }
+    }
+
+    public void shutdownAndAwait() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(24, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while waiting for pending tasks to finish.");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,99 +1,318 @@
 package com.dataiku.clubhouse;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.Lists;
+
 import io.clubhouse4j.api.v3beta.*;
 
 @SuppressWarnings("unused")
 public class ClubhouseCleaner {
 
     private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.cleaner");
+    // Stories per bulk request, small enough to stay within the payload and time limits of Clubhouse.
+    private static final int CHUNK_SIZE = 100;
+    private static final long PROGRESS_INTERVAL_MILLIS = 10_000L;
 
     private final StoriesService storiesService;
     private final EpicsService epicsService;
     private final LabelsService labelsService;
     private final MilestonesService milestonesService;
+    private final LinkedFilesService linkedFilesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final StorySearch storySearch;
 
     public ClubhouseCleaner(ClubhouseClient clubhouseClient) {
         this.storiesService = new StoriesService(clubhouseClient);
         this.epicsService = new EpicsService(clubhouseClient);
         this.labelsService = new LabelsService(clubhouseClient);
         this.milestonesService = new MilestonesService(clubhouseClient);
+        this.linkedFilesService = new LinkedFilesService(clubhouseClient);
+        this.limiter = ClubhouseLimiter.of(clubhouseClient);
+        this.retrier = new RequestRetrier("Clubhouse");
+        this.storySearch = new StorySearch(storiesService, limiter, retrier);
     }
 
+    /**
+     * Wipes the workspace in phases: the stories first, archived then deleted by chunks, so that deleting the epics,
+     * milestones and labels does not cascade to them, then the other entities. Each phase runs in parallel and reports
+     * its progress. A failed chunk is split in halves, tried again, until the failing stories are isolated and
+     * reported, without stopping the wipe.
+     */
     public void run() throws IOException {
-        ExecutorService executor = Executors.newFixedThreadPool(32);
-        logger.info("Deleting labels...");
-        for (Label label : labelsService.listLabels()) {
-            executor.submit(() -> {
-                logger.info("Deleting label " + label.id + " > " + label.name);
-                try {
-                    labelsService.deleteLabel(label.id);
-                } catch (IOException e) {
-                    logger.warning("Failed to delete label " + label.id + " > " + label.name);
+        // Stories are searched by windows of their last update, which every story has, and the chunks of each window
+        // are processed while the next windows are searched.
+        SearchStoriesParams searchStoriesParams = new SearchStoriesParams();
+        searchStoriesParams.archived = false;
+        Phase archiving = new Phase("Archiving stories");
+        searchStories(searchStoriesParams, archiving, chunk -> {
+            UpdateMultipleStoriesParams updateMultipleStoriesParams = new UpdateMultipleStoriesParams();
+            updateMultipleStoriesParams.story_ids = chunk;
+            updateMultipleStoriesParams.archived = true;
+            call(() -> storiesService.updateMultipleStories(updateMultipleStoriesParams));
+        });
+        archiving.await();
+
+        // Archiving updated the stories: search up to now again.
+        searchStoriesParams.archived = true;
+        Phase deleting = new Phase("Deleting stories");
+        searchStories(searchStoriesParams, deleting, chunk -> delete(() -> storiesService.deleteMultipleStories(chunk)));
+        deleting.await();
+
+        Phase others = new Phase("Deleting epics, milestones and labels");
+        for (EpicSlim epic : call(epicsService::listEpics)) {
+            others.submit("epic " + epic.id + " > " + epic.name, () -> delete(() -> epicsService.deleteEpic(epic.id)));
+        }
+        for (Milestone milestone : call(milestonesService::listMilestones)) {
+            others.submit("milestone " + milestone.id + " > " + milestone.name, () -> delete(() -> milestonesService.deleteMilestone(milestone.id)));
+        }
+        for (Label label : call(labelsService::listLabels)) {
+            others.submit("label " + label.id + " > " + label.name, () -> delete(() -> labelsService.deleteLabel(label.id)));
+        }
+        others.await();
+        logger.info("Done.");
+    }
+
+    /**
+     * Deletes the entities created by one run of a migration, as recorded by its journal, and nothing else: the
+     * stories first, then the epics, linked files and labels, except those reused by other runs that were not rolled
+     * back. The run is marked as rolled back in the journal once all of them are deleted; otherwise the rollback can be
+     * run again.
+     */
+    public void rollback(MigrationJournal journal, String runId) throws IOException {
+        MigrationJournal.CreatedEntities created = journal.getCreated(runId);
+        logger.info("Rolling back run " + runId + ": " + created.stories.size() + " stories, " + created.epics.size() + " epics, "
+                + created.linkedFiles.size() + " linked files, " + created.labels.size() + " labels");
+        Phase archiving = new Phase("Archiving the stories of run " + runId);
+        for (List<Long> chunk : Lists.partition(created.stories, CHUNK_SIZE)) {
+            archiving.submitChunk(chunk, storyIds -> {
+                UpdateMultipleStoriesParams updateMultipleStoriesParams = new UpdateMultipleStoriesParams();
+                updateMultipleStoriesParams.story_ids = storyIds;
+                updateMultipleStoriesParams.archived = true;
+                call(() -> storiesService.updateMultipleStories(updateMultipleStoriesParams));
+            });
+        }
+        archiving.await();
+        Phase deleting = new Phase("Deleting the stories of run " + runId);
+        for (List<Long> chunk : Lists.partition(created.stories, CHUNK_SIZE)) {
+            deleting.submitChunk(chunk, storyIds -> delete(() -> storiesService.deleteMultipleStories(storyIds)));
+        }
+        deleting.await();
+
+        Phase others = new Phase("Deleting the epics, linked files and labels of run " + runId);
+        for (Long epicId : created.epics) {
+            if (!isReused(journal, MigrationJournal.Step.EPIC, epicId, "epic")) {
+                others.submit("epic " + epicId, () -> delete(() -> epicsService.deleteEpic(epicId)));
+            }
+        }
+        for (Long linkedFileId : created.linkedFiles) {
+            if (!isReused(journal, MigrationJournal.Step.LINKED_FILE, linkedFileId, "linked file")) {
+                others.submit("linked file " + linkedFileId, () -> delete(() -> linkedFilesService.deleteLinkedFile(linkedFileId)));
+            }
+        }
+        for (Long labelId : created.labels) {
+            if (!isReused(journal, MigrationJournal.Step.LABEL, labelId, "label")) {
+                others.submit("label " + labelId, () -> delete(() -> labelsService.deleteLabel(labelId)));
+            }
+        }
+        others.await();
+
+        int failed = archiving.getFailed() + deleting.getFailed() + others.getFailed();
+        if (failed == 0) {
+            journal.rolledBack(runId);
+            logger.info("Run " + runId + " rolled back.");
+        } else {
+            logger.warning("Failed to delete " + failed + " entities of run " + runId + ": run the rollback again.");
+        }
+    }
+
+    /**
+     * The stories of the runs that reused an entity still reference it: it is kept, and left out of the rollback.
+     */
+    private static boolean isReused(MigrationJournal journal, MigrationJournal.Step step, long id, String description) {
+        Set<String> reusingRuns = journal.getReusingRuns(step, id);
+        if (reusingRuns.isEmpty()) {
+            return false;
+        }
+        logger.warning("Keeping " + description + " " + id + ": reused by the runs " + reusingRuns);
+        return true;
+    }
+
+    private void searchStories(SearchStoriesParams params, Phase phase, BulkRequest request) {
+        try {
+            storySearch.search(params, StorySearch.DateField.UPDATED_AT, StorySearch.ORIGIN, Instant.now().plus(StorySearch.CLOCK_SKEW), stories -> {
+                List<Long> storyIds = stories.stream().map(s -> s.id).collect(Collectors.toList());
+                for (List<Long> chunk : Lists.partition(storyIds, CHUNK_SIZE)) {
+                    phase.submitChunk(chunk, request);
                 }
             });
+        } catch (IOException e) {
+            // The stories found are processed anyway: the next wipe takes care of the others.
+            logger.log(Level.WARNING, "Error while searching stories", e);
         }
-        logger.info("Deleting epics...");
-        for (EpicSlim epic : epicsService.listEpics()) {
-            executor.submit(() -> {
-                logger.info("Deleting epic " + epic.id + " > " + epic.name);
+    }
+
+    private interface BulkRequest {
+        void execute(List<Long> storyIds) throws IOException;
+    }
+
+    /**
+     * Tasks of a phase of the wipe, run on a pool sized by the Clubhouse limiter.
+     */
+    private class Phase {
+        private final String name;
+        private final ExecutorService executor;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger submitted = new AtomicInteger();
+        private int pendingTasks;
+        private long lastReportMillis = System.currentTimeMillis();
+
+        Phase(String name) {
+            this.name = name;
+            this.executor = limiter.newExecutor("cleaner-%d");
+            logger.info(name + "...");
+        }
+
+        /**
+         * Submits a bulk request on a chunk of stories, split in halves and retried if it fails.
+         */
+        void submitChunk(List<Long> storyIds, BulkRequest request) {
+            submitted.addAndGet(storyIds.size());
+            submitTask(() -> runChunk(storyIds, request));
+        }
+
+        void submit(String description, ClubhouseLimiter.VoidRequest request) {
+            submitted.incrementAndGet();
+            submitTask(() -> {
                 try {
-                    epicsService.deleteEpic(epic.id);
-                } catch (IOException e) {
-                    logger.warning("Failed to delete epic " + epic.id + " > " + epic.name);
+                    request.execute();
+                    progress(1, 0);
+                } catch (IOException | RuntimeException e) {
+                    if (isNotFound(e)) {
+                        // Already deleted, e.g. by a previous attempt.
+                        progress(1, 0);
+                        return;
+                    }
+                    logger.log(Level.WARNING, name + ": failed on " + description, e);
+                    progress(0, 1);
                 }
             });
         }
-        logger.info("Deleting milestones...");
-        for (Milestone milestone : milestonesService.listMilestones()) {
+
+        private void runChunk(List<Long> storyIds, BulkRequest request) {
+            try {
+                request.execute(storyIds);
+                progress(storyIds.size(), 0);
+            } catch (IOException | RuntimeException e) {
+                if (storyIds.size() == 1) {
+                    if (isNotFound(e)) {
+                        progress(1, 0);
+                        return;
+                    }
+                    logger.log(Level.WARNING, name + ": failed on story " + storyIds.get(0), e);
+                    progress(0, 1);
+                    return;
+                }
+                logger.warning(name + ": failed on a chunk of " + storyIds.size() + " stories (" + e.getMessage() + "), splitting it");
+                for (List<Long> half : Lists.partition(storyIds, (storyIds.size() + 1) / 2)) {
+                    submitTask(() -> runChunk(half, request));
+                }
+            }
+        }
+
+        private void submitTask(Runnable task) {
+            synchronized (this) {
+                pendingTasks++;
+            }
             executor.submit(() -> {
-                logger.info("Deleting milestone " + milestone.id + " > " + milestone.name);
                 try {
-                    milestonesService.deleteMilestone(milestone.id);
-                } catch (IOException e) {
-                    logger.warning("Failed to delete milestone " + milestone.id + " > " + milestone.name);
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        pendingTasks--;
+                        notifyAll();
+                    }
                 }
             });
         }
-        logger.info("Deleting stories...");
-        executor.submit(() -> {
-            try {
-                SearchStoriesParams searchStoriesParams = new SearchStoriesParams();
-                searchStoriesParams.archived = false;
-                List<Long> storiesToArchiveIds = storiesService.searchStories(searchStoriesParams).stream().map(s -> s.id).collect(Collectors.toList());
-                if (!storiesToArchiveIds.isEmpty()) {
-                    logger.info(() -> "Archiving " + storiesToArchiveIds.size() + " stories");
-                    UpdateMultipleStoriesParams updateMultipleStoriesParams = new UpdateMultipleStoriesParams();
-                    updateMultipleStoriesParams.story_ids = storiesToArchiveIds;
-                    updateMultipleStoriesParams.archived = true;
-                    storiesService.updateMultipleStories(updateMultipleStoriesParams);
+
+        private void progress(int newlyDone, int newlyFailed) {
+            done.addAndGet(newlyDone);
+            failed.addAndGet(newlyFailed);
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (now - lastReportMillis < PROGRESS_INTERVAL_MILLIS) {
+                    return;
                 }
-                searchStoriesParams.archived = true;
-                List<Long> storiesToDeleteIds = storiesService.searchStories(searchStoriesParams).stream().map(s -> s.id).collect(Collectors.toList());
-                if (!storiesToDeleteIds.isEmpty()) {
-                    logger.info(() -> "Deleting " + storiesToDeleteIds.size() + " stories");
-                    storiesService.deleteMultipleStories(storiesToDeleteIds);
+                lastReportMillis = now;
+            }
+            report();
+        }
+
+        int getFailed() {
+            return failed.get();
+        }
+
+        private void report() {
+            logger.info(name + ": " + done.get() + " done, " + failed.get() + " failed, out of " + submitted.get());
+        }
+
+        /**
+         * Waits until all the tasks of the phase, including the retries of the failed chunks, are done.
+         */
+        void await() {
+            try {
+                synchronized (this) {
+                    while (pendingTasks > 0) {
+                        wait();
+                    }
                 }
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Error while deleting stories", e);
+            } catch (InterruptedException e) {
+                logger.warning("Interupted while waiting for the cleaning to finish.");
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
             }
-        });
-        logger.info("Waiting for completion of remaining tasks...");
-        executor.shutdown();
-        try {
-            executor.awaitTermination(24, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            logger.warning("Interupted while waiting for migration to finish.");
-            Thread.currentThread().interrupt();
+            report();
         }
-        logger.info("Done.");
+    }
+
+    /**
+     * Clubhouse errors only carry the status in their message.
+     */
+    private static boolean isNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            Integer status = RequestRetrier.getStatus(cause);
+            String message = String.valueOf(cause.getMessage()).toLowerCase(Locale.ROOT);
+            if ((status != null && status == 404) || message.contains("not found")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends an idempotent request, retrying its transient failures.
+     */
+    private <T> T call(ClubhouseLimiter.Request<T> request) throws IOException {
+        return retrier.call(() -> limiter.call(request));
+    }
+
+    private void delete(ClubhouseLimiter.VoidRequest request) throws IOException {
+        retrier.call(() -> {
+            limiter.run(request);
+            return null;
+        });
     }
 }
@@ -0,0 +1,267 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.clubhouse4j.api.v3beta.ClubhouseClient;
+
+/**
+ * Adaptive limit of the Clubhouse requests in flight, shared by all the services of a client.
+ * <p>
+ * The limit grows by one after each window of about {@code limit} healthy requests, and is cut multiplicatively
+ * when Clubhouse answers 429, when the error rate of a window is too high, or when its latency spikes above the
+ * usual latency (AIMD). Requests sent before a cut do not cut the limit again, so one burst of 429s counts once.
+ * <p>
+ * Executors created by {@link #newExecutor(String)} follow the limit, so that no thread waits for a slot that the
+ * limiter will not give.
+ */
+public class ClubhouseLimiter {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.limiter");
+
+    private static final int INITIAL_LIMIT = 8;
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 64;
+    private static final double RATE_LIMITED_BACKOFF_RATIO = 0.5;
+    private static final double UNHEALTHY_BACKOFF_RATIO = 0.8;
+    private static final double MAX_ERROR_RATE = 0.1;
+    private static final double LATENCY_SPIKE_RATIO = 2.0;
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private static final Map<ClubhouseClient, ClubhouseLimiter> limiters = new WeakHashMap<>();
+
+    public interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    public interface VoidRequest {
+        void execute() throws IOException;
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final List<IntConsumer> listeners = new CopyOnWriteArrayList<>();
+    private final LongSupplier nanoClock;
+    private int limit;
+    private int inFlight;
+    // Incremented by each cut, to ignore the outcome of the requests sent before it.
+    private long generation;
+    private int windowRequests;
+    private int windowErrors;
+    private int windowMaxInFlight;
+    private long windowLatencyNanos;
+    private double usualLatencyNanos;
+
+    public ClubhouseLimiter() {
+        this(INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT);
+    }
+
+    public ClubhouseLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, System::nanoTime);
+    }
+
+    ClubhouseLimiter(int initialLimit, int minLimit, int maxLimit, LongSupplier nanoClock) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Returns the limiter shared by all the users of the given client.
+     */
+    public static ClubhouseLimiter of(ClubhouseClient clubhouseClient) {
+        synchronized (limiters) {
+            return limiters.computeIfAbsent(clubhouseClient, c -> new ClubhouseLimiter());
+        }
+    }
+
+    public <T> T call(Request<T> request) throws IOException {
+        long requestGeneration = acquire();
+        long start = nanoClock.getAsLong();
+        try {
+            T result = request.execute();
+            release(requestGeneration, nanoClock.getAsLong() - start, Outcome.SUCCESS);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            release(requestGeneration, nanoClock.getAsLong() - start, isRateLimited(e) ? Outcome.RATE_LIMITED : Outcome.ERROR);
+            throw e;
+        }
+    }
+
+    public void run(VoidRequest request) throws IOException {
+        call(() -> {
+            request.execute();
+            return null;
+        });
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Registers a listener called with the new limit each time it changes.
+     */
+    public void addLimitListener(IntConsumer listener) {
+        listeners.add(listener);
+    }
+
+    public void removeLimitListener(IntConsumer listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns an executor with as many threads as the current limit, resized when the limit changes.
+     */
+    public ExecutorService newExecutor(String nameFormat) {
+        LimitedThreadPool executor = new LimitedThreadPool(getLimit(), nameFormat);
+        addLimitListener(executor);
+        executor.accept(getLimit());
+        return executor;
+    }
+
+    private synchronized long acquire() throws InterruptedIOException {
+        while (inFlight >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a Clubhouse request slot");
+            }
+        }
+        inFlight++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        return generation;
+    }
+
+    private synchronized void release(long requestGeneration, long latencyNanos, Outcome outcome) {
+        inFlight--;
+        notifyAll();
+        if (requestGeneration != generation) {
+            return;
+        }
+        if (outcome == Outcome.RATE_LIMITED) {
+            cut(RATE_LIMITED_BACKOFF_RATIO, "rate limited");
+            return;
+        }
+        windowRequests++;
+        windowLatencyNanos += latencyNanos;
+        if (outcome == Outcome.ERROR) {
+            windowErrors++;
+        }
+        if (windowRequests < limit) {
+            return;
+        }
+
+        double latency = (double) windowLatencyNanos / windowRequests;
+        double errorRate = (double) windowErrors / windowRequests;
+        boolean latencySpike = usualLatencyNanos > 0 && latency > LATENCY_SPIKE_RATIO * usualLatencyNanos;
+        // The usual latency follows slow drifts of Clubhouse, not the spikes.
+        usualLatencyNanos = usualLatencyNanos == 0 ? latency : usualLatencyNanos + LATENCY_SMOOTHING * (Math.min(latency, LATENCY_SPIKE_RATIO * usualLatencyNanos) - usualLatencyNanos);
+        if (errorRate > MAX_ERROR_RATE) {
+            cut(UNHEALTHY_BACKOFF_RATIO, String.format(Locale.ROOT, "%.0f%% errors", errorRate * 100));
+        } else if (latencySpike) {
+            cut(UNHEALTHY_BACKOFF_RATIO, String.format(Locale.ROOT, "latency of %d ms", (long) latency / 1_000_000));
+        } else {
+            // Only grow a limit that was reached, otherwise the limit drifts away from the real concurrency.
+            if (windowMaxInFlight >= limit && limit < maxLimit) {
+                setLimit(limit + 1, "healthy");
+            }
+            resetWindow();
+        }
+    }
+
+    private void cut(double ratio, String reason) {
+        generation++;
+        setLimit(Math.max(minLimit, (int) (limit * ratio)), reason);
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowRequests = 0;
+        windowErrors = 0;
+        windowLatencyNanos = 0;
+        windowMaxInFlight = inFlight;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        if (newLimit == limit) {
+            return;
+        }
+        // Cuts are worth noticing, the steady growth in between is not.
+        logger.log(newLimit < limit ? Level.INFO : Level.FINE, "Clubhouse concurrency limit: " + limit + " -> " + newLimit + " (" + reason + ")");
+        limit = newLimit;
+        notifyAll();
+        for (IntConsumer listener : listeners) {
+            listener.accept(newLimit);
+        }
+    }
+
+    /**
+     * Clubhouse errors only carry the status in their message.
+     */
+    private static boolean isRateLimited(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            Integer status = RequestRetrier.getStatus(cause);
+            String message = String.valueOf(cause.getMessage()).toLowerCase(Locale.ROOT);
+            if ((status != null && status == 429) || message.contains("too many requests")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private enum Outcome {
+        SUCCESS,
+        RATE_LIMITED,
+        ERROR
+    }
+
+    private class LimitedThreadPool extends ThreadPoolExecutor implements IntConsumer {
+
+        LimitedThreadPool(int threads, String nameFormat) {
+            super(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                    new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        }
+
+        @Override
+        public void accept(int threads) {
+            if (threads > getMaximumPoolSize()) {
+                setMaximumPoolSize(threads);
+                setCorePoolSize(threads);
+            } else {
+                setCorePoolSize(threads);
+                setMaximumPoolSize(threads);
+            }
+        }
+
+        @Override
+        protected void terminated() {
+            removeLimitListener(this);
+            super.terminated();
+        }
+    }
+}
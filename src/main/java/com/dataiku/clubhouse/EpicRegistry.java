@@ -0,0 +1,95 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import io.clubhouse4j.api.v3beta.CreateEpicParams;
+import io.clubhouse4j.api.v3beta.EpicSlim;
+import io.clubhouse4j.api.v3beta.EpicsService;
+
+/**
+ * Clubhouse epics by name, shared by the migration workers. Looking up an epic does not block the other workers, and
+ * the workers asking for the same missing epic at the same time wait for a single creation.
+ */
+public class EpicRegistry {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.epics");
+
+    private final EpicsService epicsService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final ConcurrentMap<String, CompletableFuture<EpicSlim>> epicsByName = new ConcurrentHashMap<>();
+    private volatile MigrationJournal journal = MigrationJournal.disabled();
+
+    EpicRegistry(EpicsService epicsService, ClubhouseLimiter limiter, RequestRetrier retrier) {
+        this.epicsService = epicsService;
+        this.limiter = limiter;
+        this.retrier = retrier;
+    }
+
+    public static EpicRegistry load(EpicsService epicsService, ClubhouseLimiter limiter, RequestRetrier retrier) throws IOException {
+        EpicRegistry registry = new EpicRegistry(epicsService, limiter, retrier);
+        for (EpicSlim epic : retrier.call(() -> limiter.call(epicsService::listEpics))) {
+            // The first epic with a given name wins, as the former linear lookup did.
+            registry.epicsByName.putIfAbsent(epic.name, CompletableFuture.completedFuture(epic));
+        }
+        return registry;
+    }
+
+    public void setJournal(MigrationJournal journal) {
+        this.journal = journal;
+    }
+
+    public EpicSlim getOrCreate(String epicName) throws IOException {
+        CompletableFuture<EpicSlim> epic = epicsByName.get(epicName);
+        if (epic == null) {
+            CompletableFuture<EpicSlim> creation = new CompletableFuture<>();
+            epic = epicsByName.putIfAbsent(epicName, creation);
+            if (epic == null) {
+                return create(epicName, creation);
+            }
+        }
+        try {
+            EpicSlim existing = epic.join();
+            journal.reused(MigrationJournal.Step.EPIC, existing.id);
+            return existing;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    public EpicSlim get(String epicName) {
+        CompletableFuture<EpicSlim> epic = epicsByName.get(epicName);
+        return epic == null || !epic.isDone() || epic.isCompletedExceptionally() ? null : epic.join();
+    }
+
+    private EpicSlim create(String epicName, CompletableFuture<EpicSlim> creation) throws IOException {
+        try {
+            logger.info("Creating epic " + epicName);
+            CreateEpicParams params = new CreateEpicParams();
+            params.name = epicName;
+            // A creation that timed out may have succeeded: look for the epic before creating it again.
+            EpicSlim epic = retrier.call(() -> EpicSlim.fromEpic(limiter.call(() -> epicsService.createEpic(params))), () -> find(epicName));
+            journal.epic(epicName, epic.id);
+            creation.complete(epic);
+            return epic;
+        } catch (IOException | RuntimeException e) {
+            // Let the next request try again, and fail the ones that were waiting for this creation.
+            epicsByName.remove(epicName, creation);
+            creation.completeExceptionally(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+            throw e;
+        }
+    }
+
+    private EpicSlim find(String epicName) throws IOException {
+        return limiter.call(epicsService::listEpics).stream().filter(epic -> epicName.equals(epic.name)).findFirst().orElse(null);
+    }
+}
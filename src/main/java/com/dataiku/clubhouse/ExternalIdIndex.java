@@ -0,0 +1,82 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import io.clubhouse4j.api.v3beta.Project;
+import io.clubhouse4j.api.v3beta.SearchStoriesParams;
+import io.clubhouse4j.api.v3beta.StoriesService;
+import io.clubhouse4j.api.v3beta.StorySlim;
+
+/**
+ * In-memory index of the stories of a project by {@code external_id}, used to skip the items that were already
+ * migrated without querying Clubhouse for each of them.
+ * <p>
+ * Workers {@link #claim(String) claim} an external id before migrating the item, then either
+ * {@link #complete(String, long) complete} it with the id of the created story or {@link #release(String) release}
+ * it on failure. A claimed id is seen as present by the other workers, so the same item is never migrated twice.
+ */
+public class ExternalIdIndex {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.index");
+    private static final Long PENDING = -1L;
+
+    private final ConcurrentMap<String, Long> storyIdByExternalId = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the archived and non-archived stories of the project. Clubhouse truncates each search, so the stories are
+     * searched by windows of their last update, which every story has.
+     *
+     * @throws IOException if some stories could not be loaded: an incomplete index would migrate them again
+     */
+    public static ExternalIdIndex load(StoriesService storiesService, ClubhouseLimiter limiter, RequestRetrier retrier, Project project) throws IOException {
+        ExternalIdIndex index = new ExternalIdIndex();
+        StorySearch storySearch = new StorySearch(storiesService, limiter, retrier);
+        for (boolean archived : new boolean[]{false, true}) {
+            SearchStoriesParams params = new SearchStoriesParams();
+            params.project_id = project.id;
+            params.archived = archived;
+            storySearch.search(params, StorySearch.DateField.UPDATED_AT, StorySearch.ORIGIN, Instant.now().plus(StorySearch.CLOCK_SKEW), index::addAll);
+        }
+        logger.info("Found " + index.size() + " stories already migrated in project " + project.name);
+        return index;
+    }
+
+    public void addAll(List<StorySlim> stories) {
+        for (StorySlim story : stories) {
+            if (story.external_id != null && story.external_id.length() > 0) {
+                storyIdByExternalId.put(story.external_id, story.id);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the story migrated from the given item, {@code -1} if it is being migrated, or null.
+     */
+    public Long get(String externalId) {
+        return storyIdByExternalId.get(externalId);
+    }
+
+    /**
+     * Atomically reserves the given external id. Returns false if the item is already migrated or being migrated.
+     */
+    public boolean claim(String externalId) {
+        return storyIdByExternalId.putIfAbsent(externalId, PENDING) == null;
+    }
+
+    public void complete(String externalId, long storyId) {
+        storyIdByExternalId.put(externalId, storyId);
+    }
+
+    public void release(String externalId) {
+        storyIdByExternalId.remove(externalId, PENDING);
+    }
+
+    public int size() {
+        return storyIdByExternalId.size();
+    }
+}
@@ -0,0 +1,185 @@
+package com.dataiku.clubhouse;
+
+import static org.eclipse.egit.github.core.client.IGitHubConstants.PAGE_FIRST;
+import static org.eclipse.egit.github.core.client.IGitHubConstants.PAGE_SIZE;
+import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_COMMENTS;
+import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_ISSUES;
+import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_REPOS;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.egit.github.core.Comment;
+import org.eclipse.egit.github.core.IRepositoryIdProvider;
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.PageIterator;
+import org.eclipse.egit.github.core.client.PagedRequest;
+
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Comments of all the issues of a repository, fetched with the repository-wide comments listing instead of one
+ * request per issue. The comments are loaded newest first by a background thread while the issues are paged, and
+ * handed over to the workers with {@link #take(int, Date)} so that the memory is released as the migration progresses.
+ * <p>
+ * The comments of an issue are all created after it, so they are all loaded once the loader has gone past its
+ * creation date. When the issues are listed newest first, their numbers decrease as they are paged: the comments of
+ * the issues above the last number paged that are not expected, i.e. pull requests, issues excluded by the listing
+ * filters or issues already taken, are dropped.
+ */
+public class GithubCommentIndex {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.github.comments");
+    private static final Pattern ISSUE_NUMBER = Pattern.compile("/issues/(\\d+)$");
+
+    private final ConcurrentMap<Integer, List<Comment>> commentsByIssue = new ConcurrentHashMap<>();
+    // Issues listed and not yet taken, and issues taken: only their comments may still be needed, or not at all.
+    private final Set<Integer> expectedIssues = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> takenIssues = ConcurrentHashMap.newKeySet();
+    private final boolean listedNewestFirst;
+    // All the comments created after this date are loaded.
+    private volatile long loadedSinceMillis = Long.MAX_VALUE;
+    private volatile boolean loaded;
+    private volatile boolean closed;
+    // All the issues above this number were listed.
+    private volatile int listedAbove = Integer.MAX_VALUE;
+
+    private GithubCommentIndex(boolean listedNewestFirst) {
+        this.listedNewestFirst = listedNewestFirst;
+    }
+
+    /**
+     * Starts paging the comments of the repository, newest first. When {@code since} is set, only the comments updated
+     * since then are listed; otherwise the issues are expected to be listed newest first, as the default listing does.
+     */
+    public static GithubCommentIndex start(GitHubClient client, IRepositoryIdProvider repository, Instant since) {
+        PagedRequest<IssueComment> request = new PagedRequest<>(PAGE_FIRST, PAGE_SIZE);
+        request.setUri(SEGMENT_REPOS + "/" + repository.generateId() + SEGMENT_ISSUES + SEGMENT_COMMENTS);
+        Map<String, String> params = new HashMap<>();
+        params.put("sort", "created");
+        params.put("direction", "desc");
+        if (since != null) {
+            params.put("since", since.toString());
+        }
+        request.setParams(params);
+        request.setType(new TypeToken<List<IssueComment>>() {
+        }.getType());
+
+        GithubCommentIndex index = new GithubCommentIndex(since == null);
+        Thread loader = new Thread(() -> index.load(new PageIterator<>(request, client)), "github-comments");
+        loader.setDaemon(true);
+        loader.start();
+        return index;
+    }
+
+    private void load(PageIterator<IssueComment> pages) {
+        int count = 0;
+        try {
+            for (Collection<IssueComment> page : pages) {
+                if (closed) {
+                    return;
+                }
+                for (IssueComment comment : page) {
+                    Integer issueNumber = comment.getIssueNumber();
+                    if (issueNumber != null && isNeeded(issueNumber)) {
+                        commentsByIssue.computeIfAbsent(issueNumber, n -> new ArrayList<>(1)).add(comment);
+                        count++;
+                    }
+                    // Published after the comment: a worker that sees the new date sees the comments added before.
+                    if (comment.getCreatedAt() != null) {
+                        loadedSinceMillis = comment.getCreatedAt().getTime();
+                    }
+                }
+                logger.info("Prefetched " + count + " comments, " + commentsByIssue.size() + " issues pending.");
+            }
+            loaded = true;
+        } catch (RuntimeException e) {
+            // The issues whose comments were not loaded fetch them one by one.
+            logger.log(Level.WARNING, "Failed to prefetch the comments of the repository", e);
+        }
+    }
+
+    private boolean isNeeded(int issueNumber) {
+        if (takenIssues.contains(issueNumber)) {
+            return false;
+        }
+        return !listedNewestFirst || issueNumber <= listedAbove || expectedIssues.contains(issueNumber);
+    }
+
+    /**
+     * Records an issue of the listing, whose comments are taken later if it is expected, or dropped.
+     */
+    public void listed(int issueNumber, boolean expected) {
+        if (expected) {
+            expectedIssues.add(issueNumber);
+        } else {
+            release(issueNumber);
+        }
+        if (listedNewestFirst && issueNumber < listedAbove) {
+            listedAbove = issueNumber;
+        }
+    }
+
+    /**
+     * Drops the comments that are no longer needed, after a page of issues was listed.
+     */
+    public void purge() {
+        commentsByIssue.keySet().removeIf(issueNumber -> !isNeeded(issueNumber));
+    }
+
+    /**
+     * Removes and returns the comments of the given issue, or null if they are not all loaded yet. Either way, the
+     * comments of the issue are no longer kept.
+     */
+    public List<Comment> take(int issueNumber, Date createdAt) {
+        boolean complete = loaded || (createdAt != null && loadedSinceMillis < createdAt.getTime());
+        List<Comment> comments = release(issueNumber);
+        if (!complete) {
+            return null;
+        }
+        return comments == null ? new ArrayList<>() : comments;
+    }
+
+    /**
+     * Drops the comments of an issue migrated or skipped, and the comments of that issue loaded later.
+     */
+    public List<Comment> release(int issueNumber) {
+        takenIssues.add(issueNumber);
+        expectedIssues.remove(issueNumber);
+        return commentsByIssue.remove(issueNumber);
+    }
+
+    /**
+     * Stops loading the comments and releases them.
+     */
+    public void close() {
+        closed = true;
+        commentsByIssue.clear();
+    }
+
+    /**
+     * Comment of the repository-wide listing, which also tells which issue it belongs to.
+     */
+    private static class IssueComment extends Comment {
+        private static final long serialVersionUID = 1L;
+
+        private String issueUrl;
+
+        private Integer getIssueNumber() {
+            Matcher matcher = ISSUE_NUMBER.matcher(issueUrl == null ? "" : issueUrl);
+            return matcher.find() ? Integer.valueOf(matcher.group(1)) : null;
+        }
+    }
+}
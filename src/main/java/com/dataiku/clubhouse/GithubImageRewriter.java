@@ -0,0 +1,223 @@
+package com.dataiku.clubhouse;
+
+import java.util.Locale;
+
+/**
+ * Rewrites the HTML images found in Github issue bodies and comments into Markdown images.
+ * <p>
+ * The content is scanned once from left to right and written into a single builder, so the cost is linear in the
+ * size of the content whatever the number of images. Supported forms are {@code <img>} tags with attributes in any
+ * order (quoted or not), self-closing {@code <img/>} tags, and images wrapped in a link ({@code <a><img></a>}).
+ * Anything that does not parse as one of these forms is copied verbatim.
+ */
+final class GithubImageRewriter {
+
+    private GithubImageRewriter() {
+    }
+
+    /**
+     * Returns the rewritten content, empty for an issue or comment without body.
+     */
+    static String rewrite(String content) {
+        if (content == null) {
+            return "";
+        }
+        if (content.indexOf('<') < 0) {
+            return content;
+        }
+        int length = content.length();
+        StringBuilder result = new StringBuilder(length);
+        int copied = 0;
+        int position = content.indexOf('<');
+        while (position >= 0) {
+            Tag image = null;
+            String href = null;
+            int end = -1;
+            if (isTagStart(content, position, "img")) {
+                image = parseTag(content, position, "img");
+                end = image == null ? -1 : image.end;
+            } else if (isTagStart(content, position, "a")) {
+                Tag anchor = parseTag(content, position, "a");
+                if (anchor != null) {
+                    int imageStart = skipWhitespace(content, anchor.end);
+                    if (isTagStart(content, imageStart, "img")) {
+                        image = parseTag(content, imageStart, "img");
+                        if (image != null) {
+                            end = parseClosingTag(content, skipWhitespace(content, image.end), "a");
+                            href = anchor.href;
+                        }
+                    }
+                }
+            }
+
+            if (image != null && image.src != null && end >= 0) {
+                result.append(content, copied, position);
+                appendMarkdownImage(result, image, href);
+                copied = end;
+                position = content.indexOf('<', end);
+            } else {
+                position = content.indexOf('<', position + 1);
+            }
+        }
+        if (copied == 0) {
+            return content;
+        }
+        result.append(content, copied, length);
+        return result.toString();
+    }
+
+    private static void appendMarkdownImage(StringBuilder result, Tag image, String href) {
+        boolean linked = href != null && !href.equals(image.src);
+        if (linked) {
+            result.append('[');
+        }
+        result.append("![").append(image.alt != null ? image.alt : defaultDescription(image.src)).append("](").append(image.src).append(')');
+        if (linked) {
+            result.append("](").append(href).append(')');
+        }
+    }
+
+    private static String defaultDescription(String src) {
+        // Same result as taking the last element of src.split("/")
+        int end = src.length();
+        while (end > 0 && src.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (end == 0) {
+            return src.isEmpty() ? "" : "image.png";
+        }
+        return src.substring(src.lastIndexOf('/', end - 1) + 1, end);
+    }
+
+    private static boolean isTagStart(String content, int position, String name) {
+        int nameEnd = position + 1 + name.length();
+        if (nameEnd >= content.length() || content.charAt(position) != '<' || !content.regionMatches(true, position + 1, name, 0, name.length())) {
+            return false;
+        }
+        char next = content.charAt(nameEnd);
+        return Character.isWhitespace(next) || next == '>' || next == '/';
+    }
+
+    /**
+     * Parses the attributes of the opening tag starting at {@code position}. Returns null if the tag is not
+     * terminated before the next {@code <}, which keeps every scan bounded by the next tag.
+     */
+    private static Tag parseTag(String content, int position, String name) {
+        int length = content.length();
+        Tag tag = new Tag();
+        int i = position + 1 + name.length();
+        while (true) {
+            i = skipWhitespace(content, i);
+            if (i >= length) {
+                return null;
+            }
+            char c = content.charAt(i);
+            if (c == '>') {
+                tag.end = i + 1;
+                return tag;
+            }
+            if (c == '/' && i + 1 < length && content.charAt(i + 1) == '>') {
+                tag.end = i + 2;
+                return tag;
+            }
+            int nameStart = i;
+            while (i < length && isAttributeNameChar(content.charAt(i))) {
+                i++;
+            }
+            if (i == nameStart) {
+                return null;
+            }
+            String attribute = content.substring(nameStart, i).toLowerCase(Locale.ROOT);
+            i = skipWhitespace(content, i);
+            String value = "";
+            if (i < length && content.charAt(i) == '=') {
+                i = skipWhitespace(content, i + 1);
+                if (i >= length) {
+                    return null;
+                }
+                char quote = content.charAt(i);
+                int valueStart;
+                int valueEnd;
+                if (quote == '"' || quote == '\'') {
+                    valueStart = i + 1;
+                    valueEnd = valueStart;
+                    while (valueEnd < length && content.charAt(valueEnd) != quote) {
+                        if (content.charAt(valueEnd) == '<') {
+                            return null;
+                        }
+                        valueEnd++;
+                    }
+                    if (valueEnd >= length) {
+                        return null;
+                    }
+                    i = valueEnd + 1;
+                } else {
+                    valueStart = i;
+                    valueEnd = i;
+                    while (valueEnd < length && isUnquotedValueChar(content, valueEnd)) {
+                        valueEnd++;
+                    }
+                    if (valueEnd == valueStart) {
+                        return null;
+                    }
+                    i = valueEnd;
+                }
+                value = content.substring(valueStart, valueEnd);
+            }
+            tag.setAttribute(attribute, value);
+        }
+    }
+
+    private static int parseClosingTag(String content, int position, String name) {
+        int nameEnd = position + 2 + name.length();
+        if (nameEnd > content.length() || !content.startsWith("</", position) || !content.regionMatches(true, position + 2, name, 0, name.length())) {
+            return -1;
+        }
+        int i = skipWhitespace(content, nameEnd);
+        return i < content.length() && content.charAt(i) == '>' ? i + 1 : -1;
+    }
+
+    private static int skipWhitespace(String content, int position) {
+        int i = position;
+        while (i < content.length() && Character.isWhitespace(content.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isAttributeNameChar(char c) {
+        return !Character.isWhitespace(c) && c != '=' && c != '>' && c != '/' && c != '<' && c != '"' && c != '\'';
+    }
+
+    private static boolean isUnquotedValueChar(String content, int i) {
+        char c = content.charAt(i);
+        if (c == '/' && i + 1 < content.length() && content.charAt(i + 1) == '>') {
+            return false;
+        }
+        return !Character.isWhitespace(c) && c != '>' && c != '<' && c != '"' && c != '\'' && c != '=' && c != '`';
+    }
+
+    private static class Tag {
+        private int end;
+        private String src;
+        private String alt;
+        private String href;
+
+        private void setAttribute(String name, String value) {
+            switch (name) {
+                case "src":
+                    src = value;
+                    break;
+                case "alt":
+                    alt = value;
+                    break;
+                case "href":
+                    href = value;
+                    break;
+                default:
+                    // width, height, style... are not kept in Markdown
+                    break;
+            }
+        }
+    }
+}
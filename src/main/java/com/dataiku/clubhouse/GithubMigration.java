@@ -4,31 +4,33 @@ import static java.util.Collections.emptyList;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.eclipse.egit.github.core.Comment;
 import org.eclipse.egit.github.core.Issue;
+import org.eclipse.egit.github.core.Label;
 import org.eclipse.egit.github.core.Milestone;
 import org.eclipse.egit.github.core.Repository;
 import org.eclipse.egit.github.core.User;
 import org.eclipse.egit.github.core.client.GitHubClient;
 import org.eclipse.egit.github.core.client.PageIterator;
+import org.eclipse.egit.github.core.client.RequestException;
 import org.eclipse.egit.github.core.service.IssueService;
+import org.eclipse.egit.github.core.service.LabelService;
 import org.eclipse.egit.github.core.service.RepositoryService;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -50,32 +52,76 @@ public class GithubMigration {
         }
     }
 
-    private static final Pattern GITHUB_IMG_HTML = Pattern.compile("<img(?<width>\\s+width=\"[0-9]+\")?(?<alt>\\s+alt=\"(?<desc>[^\"]*)\")?\\s+src=\"(?<src>[^\"]*)\">");
+    // Two pages of issues: enough to keep the workers busy without holding the whole repository in memory.
+    private static final int ISSUES_BACKLOG_SIZE = 200;
+    // Workers migrating the issues: the Github requests of all of them are paced by the GithubRequestScheduler.
+    private static final int DEFAULT_THREADS = 16;
+    private static final Duration SHUTDOWN_GRACE = Duration.ofMinutes(2);
+    private static final int STORY_BATCH_SIZE = 25;
+    private static final long STORY_BATCH_LINGER_MILLIS = 500;
     private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.github");
 
     private final StoriesService storiesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier clubhouseRetrier = new RequestRetrier("Clubhouse");
     private final EpicsService epicsService;
     private final WorkflowState finishedState;
     private final Project project;
-    private final List<EpicSlim> epicList;
+    private final EpicRegistry epicRegistry;
+    private final ExternalIdIndex storyIndex;
+    private final LabelRegistry labelRegistry;
 
+    private final GitHubClient githubClient;
     private final Repository githubRepository;
     private final IssueService githubIssueService;
+    private final GithubRequestScheduler requestScheduler;
 
     private final GithubUserMapping userMapping;
+    private final AtomicInteger failedIssues = new AtomicInteger();
     private boolean dryRun;
+    private GithubSyncState syncState;
+    private volatile GithubCommentIndex commentIndex;
+    private volatile StoryBatchWriter storyWriter;
+    private MigrationJournal journal = MigrationJournal.disabled();
+    private volatile boolean stopping;
 
     public GithubMigration(ClubhouseClient clubhouseClient, String clubhouseProjectName, GitHubClient githubClient, String gitRepositoryName, GithubMigrationParams migrationParams) throws IOException {
         this.storiesService = new StoriesService(clubhouseClient);
+        this.limiter = ClubhouseLimiter.of(clubhouseClient);
         this.epicsService = new EpicsService(clubhouseClient);
         this.project = MigrationHelpers.getProject(new ProjectsService(clubhouseClient), clubhouseProjectName);
 
+        this.githubClient = githubClient;
         this.githubRepository = getRepository(new RepositoryService(githubClient), gitRepositoryName);
         this.githubIssueService = new IssueService(githubClient);
+        this.requestScheduler = githubClient instanceof ThrottledGitHubClient ? ((ThrottledGitHubClient) githubClient).getScheduler() : new GithubRequestScheduler();
 
         this.userMapping = new GithubUserMapping(clubhouseClient, githubClient, migrationParams.usersMapping);
         this.finishedState = MigrationHelpers.getStoryState(new TeamsService(clubhouseClient), project, "Completed");
-        this.epicList = epicsService.listEpics();
+        this.epicRegistry = MigrationHelpers.getEpicRegistry(epicsService, limiter, clubhouseRetrier);
+        this.storyIndex = ExternalIdIndex.load(storiesService, limiter, clubhouseRetrier, project);
+        this.labelRegistry = LabelRegistry.load(new LabelsService(clubhouseClient), limiter, clubhouseRetrier);
+    }
+
+    /**
+     * Offline migration, which can only build the stories of issues in dry run mode.
+     */
+    @VisibleForTesting
+    GithubMigration(Project project, WorkflowState finishedState, GithubUserMapping userMapping, LabelRegistry labelRegistry) {
+        this.storiesService = null;
+        this.limiter = new ClubhouseLimiter();
+        this.epicsService = null;
+        this.project = project;
+        this.githubClient = null;
+        this.githubRepository = null;
+        this.githubIssueService = null;
+        this.requestScheduler = new GithubRequestScheduler();
+        this.userMapping = userMapping;
+        this.finishedState = finishedState;
+        this.epicRegistry = null;
+        this.storyIndex = null;
+        this.labelRegistry = labelRegistry;
+        this.dryRun = true;
     }
 
     public void setDryRun(boolean dryRun) {
@@ -86,38 +132,192 @@ public class GithubMigration {
         return dryRun;
     }
 
+    /**
+     * Enables the incremental mode: each run only migrates the issues updated since the previous complete run, and
+     * updates the stories of the issues that were already migrated.
+     */
+    public void setSyncState(GithubSyncState syncState) {
+        this.syncState = syncState;
+    }
+
+    /**
+     * Records the migration in the given journal, and resumes the migration it recorded: its migrated issues are
+     * skipped, and its unfinished issues are migrated again even if they were not updated since the watermark. The
+     * journal is closed at the end of the run, or on JVM shutdown after the issues in progress have had a chance to
+     * finish.
+     */
+    public void setJournal(MigrationJournal journal) {
+        this.journal = journal;
+        journal.getStoryIds().forEach(storyIndex::complete);
+        epicRegistry.setJournal(journal);
+        labelRegistry.setJournal(journal);
+        journal.closeOnShutdown(this::requestStop, SHUTDOWN_GRACE);
+    }
+
+    /**
+     * Stops taking new issues: the run returns once the issues in progress are migrated.
+     */
+    public void requestStop() {
+        stopping = true;
+    }
+
+    public void run() {
+        run(IssueState.OPEN);
+    }
+
+    /**
+     * Migrates the issues with the default number of workers. Workers mostly wait for Github, whose rate limits are
+     * enforced by the request scheduler: only their Clubhouse requests are bounded by the Clubhouse limiter.
+     */
+    public void run(IssueState issueState) {
+        run(DEFAULT_THREADS, issueState);
+    }
+
     public void run(int threads) {
         run(threads, IssueState.OPEN);
     }
 
     public void run(int threads, IssueState issueState) {
-        logger.info("Collecting issues to migrate.");
+        run(new BoundedExecutor(threads, ISSUES_BACKLOG_SIZE), issueState);
+    }
+
+    private void run(BoundedExecutor executor, IssueState issueState) {
+        logger.info("Migrating the Github issues.");
         Map<String, String> filterData = new HashMap<>();
         if (issueState != null) {
             filterData.put("state", issueState.githubState);
         }
+        Instant since = syncState == null ? null : syncState.getSince(githubRepository.getName());
+        if (since != null) {
+            logger.info("Migrating the Github issues updated since " + since);
+            filterData.put("since", since.toString());
+            filterData.put("sort", "updated");
+            filterData.put("direction", "asc");
+        }
+        boolean updateExisting = since != null;
+        Date maxUpdatedAt = null;
+        failedIssues.set(0);
+        // Whatever fails while collecting the issues, the submitted issues are migrated, the pending stories written
+        // and the journal closed. The watermark is only saved after a complete collection.
+        try {
+            provisionLabels();
+            logger.info("Prefetching the comments of the repository while the issues are collected.");
+            commentIndex = GithubCommentIndex.start(githubClient, githubRepository, since);
+            storyWriter = new StoryBatchWriter(storiesService, limiter, clubhouseRetrier, STORY_BATCH_SIZE, STORY_BATCH_LINGER_MILLIS);
+
+            // Issues are migrated while the next pages are downloaded. The pager blocks when the workers lag behind.
+            Set<Integer> submittedIssues = new HashSet<>();
+            PageIterator<Issue> pageIterator = githubIssueService.pageIssues(githubRepository, filterData);
+            for (Collection<Issue> page : pageIterator) {
+                if (stopping) {
+                    logger.warning("Stop requested: no more issues are collected.");
+                    break;
+                }
+                for (Issue issue : page) {
+                    // Issues created while paging shift the pages, so the same issue may show up twice.
+                    if (!isValidGithubIssue(issue)) {
+                        commentIndex.listed(issue.getNumber(), false);
+                    } else if (submittedIssues.add(issue.getNumber())) {
+                        commentIndex.listed(issue.getNumber(), true);
+                        executor.submit(new MigrateGithubIssueRunnable(issue, updateExisting));
+                    }
+                    if (issue.getUpdatedAt() != null && (maxUpdatedAt == null || issue.getUpdatedAt().after(maxUpdatedAt))) {
+                        maxUpdatedAt = issue.getUpdatedAt();
+                    }
+                }
+                commentIndex.purge();
+                logger.info("Found " + submittedIssues.size() + " issues to migrate.");
+            }
+            resumeUnfinishedIssues(executor, submittedIssues, updateExisting);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while collecting issues to migrate.");
+            Thread.currentThread().interrupt();
+        } finally {
+            logger.info("Waiting for completion of pending tasks...");
+            executor.shutdownAndAwait();
+            if (storyWriter != null) {
+                storyWriter.close();
+                storyWriter = null;
+            }
+            if (commentIndex != null) {
+                commentIndex.close();
+                commentIndex = null;
+            }
+            closeJournal();
+        }
+        saveWatermark(maxUpdatedAt);
+    }
 
-        Map<Integer, Issue> issuesToMigrate = new HashMap<>();
-        PageIterator<Issue> pageIterator = githubIssueService.pageIssues(githubRepository, filterData);
-        for (Collection<Issue> page : pageIterator) {
-            List<Issue> issues = page.stream().filter(GithubMigration::isValidGithubIssue).collect(Collectors.toList());
-            for (Issue issue : issues) {
-                issuesToMigrate.put(issue.getNumber(), issue);
+    /**
+     * Submits the issues whose migration started or failed in a previous run and that were not collected again: a
+     * delta run only lists the issues updated since the watermark, which was saved despite their failure.
+     */
+    private void resumeUnfinishedIssues(BoundedExecutor executor, Set<Integer> submittedIssues, boolean updateExisting) throws InterruptedException {
+        String issuesPath = "/" + githubRepository.generateId() + "/issues/";
+        for (String externalId : journal.getUnfinishedItems()) {
+            if (stopping) {
+                return;
+            }
+            int index = externalId.indexOf(issuesPath);
+            if (index < 0) {
+                continue;
+            }
+            int number;
+            try {
+                number = Integer.parseInt(externalId.substring(index + issuesPath.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!submittedIssues.add(number)) {
+                continue;
+            }
+            try {
+                Issue issue = githubIssueService.getIssue(githubRepository, number);
+                if (isValidGithubIssue(issue)) {
+                    logger.info("Resuming the unfinished issue #" + number);
+                    executor.submit(new MigrateGithubIssueRunnable(issue, updateExisting));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load the unfinished issue #" + number, e);
             }
-            logger.info("Found " + issuesToMigrate.size() + " issues to migrate.");
         }
+    }
 
-        logger.info("Migrating the Github issues.");
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
-        for (Issue issue : issuesToMigrate.values()) {
-            executor.submit(new MigrateGithubIssueRunnable(issue));
+    private void closeJournal() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close the migration journal", e);
+        }
+    }
+
+    private void provisionLabels() {
+        if (dryRun) {
+            return;
         }
-        executor.shutdown();
+        logger.info("Provisioning the labels of the repository.");
         try {
-            executor.awaitTermination(24, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            logger.warning("Interrupted while waiting for migration to finish.");
-            Thread.currentThread().interrupt();
+            for (Label label : new LabelService(githubClient).getLabels(githubRepository)) {
+                labelRegistry.provision(label.getName(), getColor(label.getColor()));
+            }
+        } catch (IOException e) {
+            // Stories still carry the labels that could not be provisioned.
+            logger.log(Level.WARNING, "Failed to provision the labels of the repository", e);
+        }
+    }
+
+    private void saveWatermark(Date maxUpdatedAt) {
+        if (syncState == null || dryRun || maxUpdatedAt == null) {
+            return;
+        }
+        if (stopping || Thread.currentThread().isInterrupted() || failedIssues.get() > 0) {
+            logger.warning("Keeping the previous sync watermark: " + failedIssues.get() + " issues failed to migrate.");
+            return;
+        }
+        try {
+            syncState.setSince(githubRepository.getName(), toInstant(maxUpdatedAt));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save the sync watermark", e);
         }
     }
 
@@ -130,6 +330,45 @@ public class GithubMigration {
     }
 
     private void migrateGithubIssue(Issue githubIssue) throws IOException {
+        CreateStoryParams createStoryParams = toStoryParamsWithComments(githubIssue);
+        if (!dryRun) {
+            limiter.call(() -> storiesService.createStory(createStoryParams));
+        }
+    }
+
+    private CreateStoryParams toStoryParamsWithComments(Issue githubIssue) throws IOException {
+        CreateStoryParams createStoryParams = toStoryParams(githubIssue);
+        createStoryParams.comments = migrateComments(githubIssue);
+        return createStoryParams;
+    }
+
+    /**
+     * Copies the fields of an issue updated since the last sync to its story. The comments of the story are not
+     * synced: the comments added to the issue since its migration are reported, and released from the prefetched
+     * comments.
+     */
+    private void updateGithubIssue(long storyId, Issue githubIssue) throws IOException {
+        GithubCommentIndex index = commentIndex;
+        List<Comment> newComments = index == null ? null : index.take(githubIssue.getNumber(), githubIssue.getCreatedAt());
+        if (newComments != null && !newComments.isEmpty()) {
+            logger.warning("Issue #" + githubIssue.getNumber() + " has " + newComments.size() + " comments added or edited since the last sync: they are not synced to story id=" + storyId);
+        }
+        CreateStoryParams storyParams = toStoryParams(githubIssue);
+        UpdateStoryParams updateStoryParams = new UpdateStoryParams();
+        updateStoryParams.name = storyParams.name;
+        updateStoryParams.description = storyParams.description;
+        updateStoryParams.workflow_state_id = storyParams.workflow_state_id;
+        updateStoryParams.completed_at_override = storyParams.completed_at_override;
+        updateStoryParams.labels = storyParams.labels;
+        updateStoryParams.owner_ids = storyParams.owner_ids;
+        updateStoryParams.epic_id = storyParams.epic_id;
+        if (!dryRun) {
+            clubhouseRetrier.call(() -> limiter.call(() -> storiesService.updateStory(storyId, updateStoryParams)));
+        }
+    }
+
+    @VisibleForTesting
+    CreateStoryParams toStoryParams(Issue githubIssue) throws IOException {
         int issueNumber = githubIssue.getNumber();
 
         List<String> footerNotes = new ArrayList<>();
@@ -164,9 +403,6 @@ public class GithubMigration {
         }
         createStoryParams.owner_ids = assignee.id == null ? null : Collections.singletonList(assignee.id);
 
-        // Comments
-        createStoryParams.comments = migrateComments(issueNumber);
-
         // Milestone
         createStoryParams.epic_id = migrateEpic(githubIssue);
 
@@ -178,22 +414,19 @@ public class GithubMigration {
         String description = postProcessImages(githubIssue.getBody());
         String descriptionFooter = "\n\n---\n\n#### Migration notes\n\n" + Joiner.on("\n\n").join(footerNotes) + "\n\n---\n\n";
         createStoryParams.description = description + descriptionFooter;
-
-        if (!dryRun) {
-            storiesService.createStory(createStoryParams);
-        }
+        return createStoryParams;
     }
 
     private List<CreateLabelParams> migrateLabels(Issue githubIssue) {
         if (githubIssue.getLabels() == null) {
             return emptyList();
         }
-        return githubIssue.getLabels().stream().map(label -> new CreateLabelParams(label.getName(), getColor(label.getColor()))).collect(Collectors.toList());
+        return githubIssue.getLabels().stream().map(label -> labelRegistry.toStoryLabel(label.getName(), getColor(label.getColor()))).collect(Collectors.toList());
     }
 
-    private List<CreateCommentParams> migrateComments(int issueNumber) throws IOException {
+    private List<CreateCommentParams> migrateComments(Issue githubIssue) throws IOException {
         List<CreateCommentParams> result = new ArrayList<>();
-        for (Comment comment : githubIssueService.getComments(githubRepository, issueNumber)) {
+        for (Comment comment : getComments(githubIssue)) {
             CreateCommentParams createComment = new CreateCommentParams();
             createComment.author_id = userMapping.getClubhouseMemberUUID(comment.getUser());
             createComment.created_at = toInstant(comment.getCreatedAt());
@@ -204,6 +437,19 @@ public class GithubMigration {
         return result;
     }
 
+    private List<Comment> getComments(Issue githubIssue) throws IOException {
+        if (githubIssue.getComments() == 0) {
+            return emptyList();
+        }
+        GithubCommentIndex index = commentIndex;
+        List<Comment> comments = index == null ? null : index.take(githubIssue.getNumber(), githubIssue.getCreatedAt());
+        if (comments == null || comments.size() < githubIssue.getComments()) {
+            // Not prefetched yet, or only the comments updated since the sync watermark were prefetched.
+            return githubIssueService.getComments(githubRepository, githubIssue.getNumber());
+        }
+        return comments;
+    }
+
     private Long migrateEpic(Issue githubIssue) throws IOException {
         if (dryRun) {
             return null;
@@ -217,28 +463,12 @@ public class GithubMigration {
         if (epicName.matches("V\\s[0-9]+\\..*")) {
             epicName = epicName.substring(2) + " Enhancements";
         }
-        synchronized (epicList) {
-            return MigrationHelpers.getOrCreateEpic(epicsService, epicList, epicName).id;
-        }
+        return epicRegistry.getOrCreate(epicName).id;
     }
 
     @VisibleForTesting
     static String postProcessImages(String content) {
-        Matcher matcher = GITHUB_IMG_HTML.matcher(content);
-        while (matcher.find()) {
-            int start = matcher.start();
-            int end = matcher.end();
-            String src = matcher.group("src");
-            String desc = matcher.group("desc");
-            if (desc == null) {
-                String[] split = src.split("/");
-                desc = split.length > 0 ? split[split.length - 1] : "image.png";
-            }
-            content = content.substring(0, start) + "![" + desc + "](" + src + ")" + content.substring(end);
-
-            matcher = GITHUB_IMG_HTML.matcher(content);
-        }
-        return content;
+        return GithubImageRewriter.rewrite(content);
     }
 
     private static Repository getRepository(RepositoryService repositoryService, String name) throws IOException {
@@ -269,54 +499,108 @@ public class GithubMigration {
 
     private class MigrateGithubIssueRunnable implements Runnable {
         private final Issue issue;
+        private final boolean updateExisting;
 
-        public MigrateGithubIssueRunnable(Issue issue) {
+        public MigrateGithubIssueRunnable(Issue issue, boolean updateExisting) {
             this.issue = issue;
+            this.updateExisting = updateExisting;
         }
 
         @Override
-        @SuppressWarnings("squid:S2629")
         public void run() {
-            boolean retry = false;
-            do {
+            try {
+                migrate();
+            } finally {
+                // Migrated, skipped or failed, the issue no longer needs its prefetched comments.
+                GithubCommentIndex index = commentIndex;
+                if (index != null) {
+                    index.release(issue.getNumber());
+                }
+            }
+        }
+
+        @SuppressWarnings("squid:S2629")
+        private void migrate() {
+            String externalId = issue.getHtmlUrl();
+            if (stopping) {
+                failedIssues.incrementAndGet();
+                return;
+            }
+            for (int attempt = 1; ; attempt++) {
                 try {
                     // Checking issue in ClubHouse to see if it is not already present.
-                    StorySlim existingStory = findGithubIssueInClubhouse(issue);
-                    if (existingStory == null) {
-                        migrateGithubIssue(issue);
-                        logger.log(Level.INFO, "Migrated issue #" + issue.getNumber());
+                    if (storyIndex.claim(externalId)) {
+                        migrateAndIndex(externalId);
                     } else {
-                        logger.log(Level.INFO, "Skipping issue #" + issue.getNumber() + ": already migrated to Clubhouse with id=" + existingStory.id);
-                    }
-                } catch (org.eclipse.egit.github.core.client.RequestException re) {
-                    if ((re.getStatus() == 403 && re.getMessage().startsWith("You have triggered an abuse")) || re.getStatus() == 502) {
-                        try {
-                            long coolDown = 60L + Math.round(Math.random() * 60.0d);
-                            logger.log(Level.WARNING, "We have triggered an abuse on Github servers. Waiting for " + coolDown + " seconds before retrying.");
-                            Thread.sleep(coolDown * 1000L);
-                            retry = true;
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            logger.log(Level.WARNING, "Failed to migrate issue #" + issue.getNumber(), e);
+                        Long storyId = storyIndex.get(externalId);
+                        if (updateExisting && storyId != null && storyId >= 0) {
+                            updateGithubIssue(storyId, issue);
+                            logger.log(Level.INFO, "Updated issue #" + issue.getNumber() + " in Clubhouse story id=" + storyId);
+                        } else {
+                            logger.log(Level.INFO, "Skipping issue #" + issue.getNumber() + ": already migrated to Clubhouse with id=" + storyId);
                         }
                     }
-                    // Lets
+                    return;
+                } catch (RequestException re) {
+                    long backoff = GithubRequestScheduler.isRetriable(re) ? requestScheduler.backoffMillis(attempt) : -1;
+                    if (backoff < 0) {
+                        failedIssues.incrementAndGet();
+                        logger.log(Level.WARNING, "Failed to migrate issue #" + issue.getNumber(), re);
+                        return;
+                    }
+                    logger.log(Level.WARNING, "Github rejected the requests of issue #" + issue.getNumber() + " (" + re.getStatus() + "). Retrying in " + backoff / 1000 + " seconds.");
+                    if (re.getStatus() == 403) {
+                        // Secondary rate limit: slow down every thread, not only this one.
+                        requestScheduler.pause(backoff);
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failedIssues.incrementAndGet();
+                        logger.log(Level.WARNING, "Failed to migrate issue #" + issue.getNumber(), e);
+                        return;
+                    }
                 } catch (Exception e) {
+                    failedIssues.incrementAndGet();
                     logger.log(Level.WARNING, "Failed to migrate issue #" + issue.getNumber(), e);
+                    return;
                 }
-            } while (retry);
+            }
         }
 
-        private StorySlim findGithubIssueInClubhouse(Issue githubIssue) throws IOException {
+        private void migrateAndIndex(String externalId) throws IOException {
             if (!dryRun) {
-                SearchStoriesParams searchStoriesParams = new SearchStoriesParams();
-                searchStoriesParams.external_id = githubIssue.getHtmlUrl();
-                List<StorySlim> storySlims = storiesService.searchStories(searchStoriesParams);
-                if (!storySlims.isEmpty()) {
-                    return storySlims.get(0);
+                // Recorded before the linked files and epics of the item are created.
+                journal.started(externalId);
+            }
+            CreateStoryParams createStoryParams;
+            try {
+                createStoryParams = toStoryParamsWithComments(issue);
+            } catch (IOException | RuntimeException e) {
+                storyIndex.release(externalId);
+                if (!dryRun) {
+                    journal.failed(externalId);
                 }
+                throw e;
             }
-            return null;
+            if (dryRun) {
+                storyIndex.release(externalId);
+                return;
+            }
+            // The story is created with the next batch: a failure releases the issue for the next run.
+            storyWriter.create(createStoryParams).whenComplete((storyId, e) -> {
+                if (e == null) {
+                    storyIndex.complete(externalId, storyId);
+                    journal.story(externalId, storyId);
+                    logger.log(Level.INFO, "Migrated issue #" + issue.getNumber());
+                } else {
+                    storyIndex.release(externalId);
+                    journal.failed(externalId);
+                    failedIssues.incrementAndGet();
+                    logger.log(Level.WARNING, "Failed to create the story of issue #" + issue.getNumber(), e);
+                }
+            });
         }
     }
 }
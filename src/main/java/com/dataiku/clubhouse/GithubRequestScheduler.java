@@ -0,0 +1,93 @@
+package com.dataiku.clubhouse;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import org.eclipse.egit.github.core.client.RequestException;
+
+/**
+ * Paces the requests of all the threads sharing a Github client according to the rate limit reported by Github.
+ * <p>
+ * The remaining budget ({@code X-RateLimit-Remaining}) is spread evenly until the reset time
+ * ({@code X-RateLimit-Reset}), and every request waits for its slot. A {@code Retry-After} or a secondary rate limit
+ * pauses all the threads until the given time instead of letting each of them hit the limit again.
+ */
+public class GithubRequestScheduler {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.github.scheduler");
+
+    private static final long BASE_BACKOFF_MILLIS = 1_000L;
+    private static final long MAX_BACKOFF_MILLIS = 120_000L;
+    private static final int MAX_ATTEMPTS = 6;
+
+    private int remaining = -1;
+    private long resetAtMillis;
+    private long nextSlotMillis;
+    private long pausedUntilMillis;
+
+    /**
+     * Blocks until the caller may send its next request.
+     */
+    public void acquire() throws InterruptedException {
+        long waitMillis;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long slot = Math.max(now, Math.max(nextSlotMillis, pausedUntilMillis));
+            if (remaining == 0 && resetAtMillis > slot) {
+                logger.warning("Github rate limit exhausted, waiting until it is reset in " + (resetAtMillis - now) / 1000 + " seconds.");
+                slot = resetAtMillis;
+            }
+            if (remaining > 0 && resetAtMillis > slot) {
+                nextSlotMillis = slot + (resetAtMillis - slot) / remaining;
+                remaining--;
+            } else {
+                nextSlotMillis = slot;
+            }
+            waitMillis = slot - now;
+        }
+        if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Updates the budget with the rate limit headers of a response.
+     */
+    public synchronized void update(int remaining, long resetAtEpochSeconds) {
+        this.remaining = remaining;
+        this.resetAtMillis = resetAtEpochSeconds * 1000L;
+    }
+
+    /**
+     * Holds every request until the given delay has elapsed.
+     */
+    public synchronized void pause(long delayMillis) {
+        long until = System.currentTimeMillis() + delayMillis;
+        if (until > pausedUntilMillis) {
+            logger.warning("Pausing Github requests for " + delayMillis / 1000 + " seconds.");
+            pausedUntilMillis = until;
+        }
+    }
+
+    /**
+     * Returns the delay to wait before the given attempt (starting at 1) of a failed task, or -1 if the retry budget
+     * of the task is exhausted. The delay is exponential and jittered so that the threads do not retry together.
+     */
+    public long backoffMillis(int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            return -1;
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    public static boolean isRetriable(RequestException e) {
+        int status = e.getStatus();
+        if (status == 403) {
+            String message = String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT);
+            return message.contains("abuse") || message.contains("rate limit");
+        }
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+}
@@ -0,0 +1,74 @@
+package com.dataiku.clubhouse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonParseException;
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * On-disk cache of Github responses with their validators ({@code ETag} / {@code Last-Modified}).
+ * <p>
+ * Cached responses are revalidated with a conditional request: a {@code 304 Not Modified} answer does not count
+ * against the Github rate limit, so re-running a migration mostly reads from this cache.
+ */
+public class GithubResponseCache {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.github.cache");
+
+    private final File directory;
+
+    public GithubResponseCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the Github cache directory " + directory);
+        }
+    }
+
+    public Entry get(String uri) {
+        File file = getFile(uri);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Entry entry = GsonHelper.GSON.fromJson(reader, Entry.class);
+            return entry != null && uri.equals(entry.uri) ? entry : null;
+        } catch (IOException | JsonParseException e) {
+            logger.log(Level.WARNING, "Ignoring unreadable cache entry " + file, e);
+            return null;
+        }
+    }
+
+    public void put(Entry entry) {
+        File file = getFile(entry.uri);
+        try {
+            File tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+            try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                GsonHelper.GSON.toJson(entry, writer);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write cache entry " + file, e);
+        }
+    }
+
+    private File getFile(String uri) {
+        return new File(directory, Hashing.sha256().hashString(uri, StandardCharsets.UTF_8).toString() + ".json");
+    }
+
+    public static class Entry {
+        public String uri;
+        public String etag;
+        public String lastModified;
+        public String link;
+        public String body;
+    }
+}
@@ -0,0 +1,61 @@
+package com.dataiku.clubhouse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * Watermarks of the incremental Github migrations: for each repository, the most recent {@code updated_at} of the
+ * issues migrated by the last complete run. The next run only asks Github for the issues updated since then.
+ */
+public class GithubSyncState {
+
+    private transient File file;
+
+    // key=github repository name, value=ISO-8601 updated_at watermark
+    public Map<String, String> since = new HashMap<>();
+
+    public static GithubSyncState load(File file) throws IOException {
+        GithubSyncState state = null;
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                state = GsonHelper.GSON.fromJson(reader, GithubSyncState.class);
+            }
+        }
+        if (state == null) {
+            state = new GithubSyncState();
+        }
+        if (state.since == null) {
+            state.since = new HashMap<>();
+        }
+        state.file = file;
+        return state;
+    }
+
+    public synchronized Instant getSince(String repositoryName) {
+        String watermark = since.get(repositoryName);
+        return watermark == null ? null : Instant.parse(watermark);
+    }
+
+    public synchronized void setSince(String repositoryName, Instant watermark) throws IOException {
+        since.put(repositoryName, watermark.toString());
+        save();
+    }
+
+    private void save() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            GsonHelper.GSON.toJson(this, writer);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -12,6 +12,7 @@ import org.eclipse.egit.github.core.User;
 import org.eclipse.egit.github.core.client.GitHubClient;
 import org.eclipse.egit.github.core.service.UserService;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -39,7 +40,12 @@ public class GithubUserMapping {
     private final LoadingCache<String, String> githubUserCache = CacheBuilder.newBuilder().build(new GithubUserDisplayNameLoader());
 
     public GithubUserMapping(ClubhouseClient chClient, GitHubClient gitHubClient, Map<String, String> userMappings) throws IOException {
-        this.members = new UsersService(chClient).listMembers();
+        this(new UsersService(chClient).listMembers(), gitHubClient, userMappings);
+    }
+
+    @VisibleForTesting
+    GithubUserMapping(List<Member> members, GitHubClient gitHubClient, Map<String, String> userMappings) {
+        this.members = members;
         this.githubClient = gitHubClient;
         this.clubhouseNameByGithubLogin.putAll(userMappings);
     }
@@ -4,14 +4,24 @@ import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.Lists;
+
 import io.clubhouse4j.api.v3beta.*;
 
 @SuppressWarnings("squid:S2629")
@@ -23,12 +33,21 @@ public class Housekeeping {
     private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.housekeeping");
     private final EpicState epicFinishedState;
     private final MilestonesService chMilestonesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final StorySearch storySearch;
+
+    // Stories per bulk update, the maximum accepted by Clubhouse.
+    private static final int STORY_BATCH_SIZE = 100;
 
     public Housekeeping(ClubhouseClient clubhouseClient) throws IOException {
         chStoriesService = new StoriesService(clubhouseClient);
         chEpicsService = new EpicsService(clubhouseClient);
         chMilestonesService = new MilestonesService(clubhouseClient);
         chEpicWorkflowService = new EpicWorkflowService(clubhouseClient);
+        limiter = ClubhouseLimiter.of(clubhouseClient);
+        retrier = new RequestRetrier("Clubhouse");
+        storySearch = new StorySearch(chStoriesService, limiter, retrier);
 
         epicFinishedState = getEpicFinishedState();
     }
@@ -39,56 +58,74 @@ public class Housekeeping {
     }
 
     public void archiveCompletedStories(Duration closeDelay) throws IOException {
+        archiveCompletedStories(StorySearch.ORIGIN, Instant.now().minus(closeDelay));
+    }
+
+    /**
+     * Archives the stories completed between the given dates.
+     *
+     * @return the number of chunks of stories that could not be archived
+     */
+    int archiveCompletedStories(Instant completedStart, Instant completedEnd) throws IOException {
         SearchStoriesParams params = new SearchStoriesParams();
         params.archived = false;
-        params.completed_at_end = Instant.now().minus(closeDelay);
-        List<StorySlim> storiesToArchive = chStoriesService.searchStories(params);
-        logger.log(Level.INFO, "Archiving " + storiesToArchive.size() + " stories");
-
-        ExecutorService executor = Executors.newFixedThreadPool(32);
-        for (StorySlim story : storiesToArchive) {
-            executor.submit(() -> {
+        AtomicInteger failedChunks = new AtomicInteger();
+        // Each window of stories is archived as soon as it is found, while the next windows are searched.
+        long found = storySearch.search(params, StorySearch.DateField.COMPLETED_AT, completedStart, completedEnd, stories -> {
+            List<Long> storyIds = stories.stream().map(story -> story.id).collect(Collectors.toList());
+            // Each chunk is one bulk update, and archiving is idempotent: a chunk that failed is retried as a whole.
+            for (List<Long> chunk : Lists.partition(storyIds, STORY_BATCH_SIZE)) {
+                UpdateMultipleStoriesParams updateParams = new UpdateMultipleStoriesParams();
+                updateParams.story_ids = chunk;
+                updateParams.archived = true;
+                logger.log(Level.INFO, "Archiving " + chunk.size() + " stories");
                 try {
-                    archiveStory(story);
-                } catch (IOException e) {
-                    logger.warning("Failed to archive story " + story.id + " > " + story.name);
+                    call(() -> chStoriesService.updateMultipleStories(updateParams));
+                } catch (IOException | RuntimeException e) {
+                    failedChunks.incrementAndGet();
+                    logger.log(Level.WARNING, "Failed to archive " + chunk.size() + " stories " + chunk, e);
                 }
-            });
-        }
-        executor.shutdown();
-        try {
-            executor.awaitTermination(24, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            logger.warning("Interupted while waiting for migration to finish.");
-            Thread.currentThread().interrupt();
-        }
-
+            }
+        });
+        logger.log(Level.INFO, "Archived " + found + " stories" + (failedChunks.get() > 0 ? ", " + failedChunks.get() + " chunks failed" : ""));
+        return failedChunks.get();
     }
 
-    private void archiveStory(StorySlim story) throws IOException {
-        UpdateStoryParams updateStoryParams = new UpdateStoryParams();
-        updateStoryParams.archived = true;
-        logger.log(Level.INFO, "Archiving story " + story.id);
-        chStoriesService.updateStory(story.id, updateStoryParams);
+    public void closeCompletedEpics() throws IOException {
+        closeCompletedEpics(listEpics());
     }
 
-    public void closeCompletedEpics() throws IOException {
-        List<EpicSlim> epics = chEpicsService.listEpics();
+    /**
+     * Closes the given epics whose stories are all done, and returns the epics that could not be closed.
+     */
+    List<EpicSlim> closeCompletedEpics(List<EpicSlim> epics) {
         List<EpicSlim> epicsToClose = epics.stream().filter(epic -> nonArchived(epic) && doneButNotComplete(epic)).collect(Collectors.toList());
 
         logger.log(Level.INFO, "Will close " + epicsToClose.size() + " epics out of " + epics.size());
-        for (EpicSlim epic : epicsToClose) {
+        return inParallel(epicsToClose, epic -> {
             logger.info("Closing Epic " + epic.id + ": " + epic.name);
             UpdateEpicParams params = new UpdateEpicParams();
             params.epic_state_id = epicFinishedState.id;
-            chEpicsService.updateEpic(epic.id, params);
-        }
+            call(() -> chEpicsService.updateEpic(epic.id, params));
+        }, epic -> "close epic " + epic.id + " > " + epic.name);
     }
 
     public void createMilestonesFromEpics() throws IOException {
-        List<Milestone> milestones = chMilestonesService.listMilestones();
+        assignMilestones(listEpics(), listMilestones());
+        reorderMilestones();
+    }
+
+    /**
+     * Assigns the enhancement epics without milestone to the milestone of their version, created if missing. Returns
+     * whether milestones were created.
+     */
+    boolean assignMilestones(List<EpicSlim> epics, List<Milestone> milestones) throws IOException {
+        Map<String, Milestone> milestonesByName = new HashMap<>();
+        for (Milestone milestone : milestones) {
+            milestonesByName.put(milestone.name, milestone);
+        }
+        boolean created = false;
 
-        List<EpicSlim> epics = chEpicsService.listEpics();
         List<EpicSlim> matchingEpics = epics.stream().filter(epic -> epic.name.matches("\\d.\\d.\\d Enhancements")).collect(Collectors.toList());
         for (EpicSlim matchingEpic : matchingEpics) {
             if (matchingEpic.milestone_id != null) {
@@ -97,7 +134,7 @@ public class Housekeeping {
 
             String name = matchingEpic.name;
             String milestoneName = "DSS " + name.substring(0, 6);
-            Milestone milestone = milestones.stream().filter(m -> m.name.equals(milestoneName)).findAny().orElse(null);
+            Milestone milestone = milestonesByName.get(milestoneName);
             if (milestone == null) {
                 // Create missing milestone
                 logger.log(Level.INFO, "Creating missing milestone " + milestoneName);
@@ -105,71 +142,226 @@ public class Housekeeping {
                 createMilestone.completed_at_override = matchingEpic.completed_at_override;
                 createMilestone.name = milestoneName;
                 createMilestone.state = matchingEpic.state;
-                milestone = chMilestonesService.createMilestone(createMilestone);
-                milestones.add(milestone);
+                // A creation that timed out may have succeeded: look for it before creating it again.
+                milestone = retrier.call(() -> limiter.call(() -> chMilestonesService.createMilestone(createMilestone)), () -> findMilestone(milestoneName));
+                milestonesByName.put(milestoneName, milestone);
+                created = true;
             }
 
             // Associate epic with milestone
             logger.log(Level.INFO, "Associating milestone " + milestoneName + " with epic " + matchingEpic.name);
             UpdateEpicParams updateEpicParams = new UpdateEpicParams();
             updateEpicParams.milestone_id = milestone.id;
-            chEpicsService.updateEpic(matchingEpic.id, updateEpicParams);
+            call(() -> chEpicsService.updateEpic(matchingEpic.id, updateEpicParams));
         }
 
-        // Reorder milestones alphabetically
-        logger.log(Level.INFO, "Reordering milestones");
-        List<Milestone> unsortedMilestones = chMilestonesService.listMilestones();
-        List<Milestone> sortedMilestones = new ArrayList<>(unsortedMilestones);
-        sortedMilestones.sort((o1, o2) -> o1.name.compareTo(o2.name) * -1);
-        Milestone firstUnsortedMilestone = unsortedMilestones.get(0);
-        Milestone firstSortedMilestone = sortedMilestones.get(0);
+        return created;
+    }
 
-        UpdateMilestoneParams updateMilestoneParams = new UpdateMilestoneParams();
-        updateMilestoneParams.before_id = firstUnsortedMilestone.id;
-        try {
-            logger.info("Move Milestone " + firstSortedMilestone.name + " before " + firstUnsortedMilestone.name);
-            chMilestonesService.updateMilestone(firstSortedMilestone.id, updateMilestoneParams);
-        } catch (RuntimeException e) {
-            logger.info("Milestone " + firstSortedMilestone.name + " already ordered");
+    /**
+     * Reorders the milestones alphabetically, newest first, and returns the number of moves that failed.
+     */
+    int reorderMilestones() throws IOException {
+        List<Milestone> unsortedMilestones = listMilestones();
+        List<MilestoneMove> moves = computeMilestoneMoves(unsortedMilestones, (o1, o2) -> o1.name.compareTo(o2.name) * -1);
+        logger.log(Level.INFO, "Reordering milestones: " + moves.size() + " moves for " + unsortedMilestones.size() + " milestones");
+        int failedMoves = 0;
+        for (MilestoneMove move : moves) {
+            logger.info("Move Milestone " + move.milestone.name + (move.params.before_id != null ? " before " : " after ") + move.anchor.name);
+            try {
+                call(() -> chMilestonesService.updateMilestone(move.milestone.id, move.params));
+            } catch (IOException | RuntimeException e) {
+                // The next moves are anchored on this one: go on, the next run will fix the order.
+                failedMoves++;
+                logger.log(Level.WARNING, "Failed to move milestone " + move.milestone.name, e);
+            }
         }
+        return failedMoves;
+    }
 
-        for (int i = 1, milestonesSize = sortedMilestones.size(); i < milestonesSize; i++) {
-            Milestone currentMilestone = sortedMilestones.get(i);
-            updateMilestoneParams = new UpdateMilestoneParams();
-            updateMilestoneParams.after_id = sortedMilestones.get(i - 1).id;
-            logger.info("Move Milestone " + currentMilestone.name + " after " + sortedMilestones.get(i - 1).name);
-            try {
-                chMilestonesService.updateMilestone(currentMilestone.id, updateMilestoneParams);
-            } catch (RuntimeException e) {
-                logger.info("Milestone " + currentMilestone.name + " already ordered");
+    /**
+     * Returns the fewest moves sorting the milestones, listed in their current order. The milestones of a longest
+     * subsequence already sorted stay in place, and each other milestone is moved next to its neighbour in the sorted
+     * order, in an order where that neighbour is already in its final place.
+     */
+    static List<MilestoneMove> computeMilestoneMoves(List<Milestone> milestones, Comparator<Milestone> order) {
+        List<Milestone> sorted = new ArrayList<>(milestones);
+        sorted.sort(order);
+        boolean[] stays = new boolean[sorted.size()];
+        Map<Milestone, Integer> ranks = new IdentityHashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            ranks.put(sorted.get(i), i);
+        }
+        int[] currentRanks = milestones.stream().mapToInt(ranks::get).toArray();
+        for (int rank : longestIncreasingSubsequence(currentRanks)) {
+            stays[rank] = true;
+        }
+
+        List<MilestoneMove> moves = new ArrayList<>();
+        int firstStaying = 0;
+        while (firstStaying < stays.length && !stays[firstStaying]) {
+            firstStaying++;
+        }
+        // Milestones sorted before the first one staying in place are moved before their successor, from the last.
+        for (int i = firstStaying - 1; i >= 0; i--) {
+            UpdateMilestoneParams params = new UpdateMilestoneParams();
+            params.before_id = sorted.get(i + 1).id;
+            moves.add(new MilestoneMove(sorted.get(i), sorted.get(i + 1), params));
+        }
+        // The others are moved after their predecessor, from the first.
+        for (int i = firstStaying + 1; i < sorted.size(); i++) {
+            if (!stays[i]) {
+                UpdateMilestoneParams params = new UpdateMilestoneParams();
+                params.after_id = sorted.get(i - 1).id;
+                moves.add(new MilestoneMove(sorted.get(i), sorted.get(i - 1), params));
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Returns the values of a longest strictly increasing subsequence, in O(n log n).
+     */
+    private static List<Integer> longestIncreasingSubsequence(int[] values) {
+        // tails[k]: index of the smallest tail of an increasing subsequence of length k + 1.
+        int[] tails = new int[values.length];
+        int[] predecessors = new int[values.length];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
             }
+            predecessors[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            length = Math.max(length, low + 1);
+        }
+        List<Integer> subsequence = new ArrayList<>();
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = predecessors[i]) {
+            subsequence.add(values[i]);
+        }
+        Collections.reverse(subsequence);
+        return subsequence;
+    }
+
+    static class MilestoneMove {
+        final Milestone milestone;
+        final Milestone anchor;
+        final UpdateMilestoneParams params;
+
+        MilestoneMove(Milestone milestone, Milestone anchor, UpdateMilestoneParams params) {
+            this.milestone = milestone;
+            this.anchor = anchor;
+            this.params = params;
         }
     }
 
     private void archiveCompletedEpics(Duration closeDelay) throws IOException {
-        Instant deadline = Instant.now().minus(closeDelay);
-        List<EpicSlim> epics = chEpicsService.listEpics();
+        archiveCompletedEpics(listEpics(), Instant.now().minus(closeDelay));
+    }
+
+    /**
+     * Archives the given epics completed before the deadline, and returns the epics that could not be archived.
+     */
+    List<EpicSlim> archiveCompletedEpics(List<EpicSlim> epics, Instant deadline) {
         List<EpicSlim> epicsToArchive = epics.stream().filter(epic -> nonArchived(epic) && completedBefore(epic, deadline)).collect(Collectors.toList());
 
-        logger.log(Level.INFO, "Archiving " + epicsToArchive.size() + " epics");
-        for (EpicSlim epic : epicsToArchive) {
-            UpdateEpicParams updateEpicParams = new UpdateEpicParams();
-            updateEpicParams.archived = true;
-            logger.log(Level.INFO, "Archiving epic " + epic.id);
-            chEpicsService.updateEpic(epic.id, updateEpicParams);
-        }
+        return archiveEpics(epicsToArchive);
     }
 
     public void archiveEpics(String prefix) throws IOException {
-        List<EpicSlim> epics = chEpicsService.listEpics();
+        List<EpicSlim> epics = listEpics();
         List<EpicSlim> epicsToArchive = epics.stream().filter(epic -> nonArchived(epic) && epic.name.startsWith(prefix)).collect(Collectors.toList());
+        archiveEpics(epicsToArchive);
+    }
+
+    private List<EpicSlim> archiveEpics(List<EpicSlim> epicsToArchive) {
         logger.log(Level.INFO, "Archiving " + epicsToArchive.size() + " epics");
-        for (EpicSlim epic : epicsToArchive) {
+        return inParallel(epicsToArchive, epic -> {
             UpdateEpicParams updateEpicParams = new UpdateEpicParams();
             updateEpicParams.archived = true;
             logger.log(Level.INFO, "Archiving epic " + epic.id);
-            chEpicsService.updateEpic(epic.id, updateEpicParams);
+            call(() -> chEpicsService.updateEpic(epic.id, updateEpicParams));
+        }, epic -> "archive epic " + epic.id + " > " + epic.name);
+    }
+
+    /**
+     * Runs an update per item on a pool sized by the Clubhouse limiter, and waits for all of them. A failed update is
+     * logged and does not stop the others.
+     *
+     * @return the items whose update failed
+     */
+    private <T> List<T> inParallel(List<T> items, Update<T> update, Function<T, String> description) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ExecutorService executor = limiter.newExecutor("housekeeping-%d");
+        List<T> failures = Collections.synchronizedList(new ArrayList<>());
+        for (T item : items) {
+            executor.submit(() -> {
+                try {
+                    update.apply(item);
+                } catch (IOException | RuntimeException e) {
+                    failures.add(item);
+                    logger.log(Level.WARNING, "Failed to " + description.apply(item), e);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(24, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            logger.warning("Interupted while waiting for housekeeping to finish.");
+            Thread.currentThread().interrupt();
         }
+        if (!failures.isEmpty()) {
+            logger.warning(failures.size() + " updates out of " + items.size() + " failed.");
+        }
+        return failures;
+    }
+
+    private interface Update<T> {
+        void apply(T item) throws IOException;
+    }
+
+    List<EpicSlim> listEpics() throws IOException {
+        return call(chEpicsService::listEpics);
+    }
+
+    List<Milestone> listMilestones() throws IOException {
+        return call(chMilestonesService::listMilestones);
+    }
+
+    /**
+     * Returns the epics of the stories updated between the given dates: their stats may have changed.
+     */
+    Set<Long> findEpicsOfStoriesUpdated(Instant updatedStart, Instant updatedEnd) throws IOException {
+        Set<Long> epicIds = ConcurrentHashMap.newKeySet();
+        storySearch.search(new SearchStoriesParams(), StorySearch.DateField.UPDATED_AT, updatedStart, updatedEnd, stories -> {
+            for (StorySlim story : stories) {
+                if (story.epic_id != null) {
+                    epicIds.add(story.epic_id);
+                }
+            }
+        });
+        return epicIds;
+    }
+
+    private Milestone findMilestone(String name) throws IOException {
+        return limiter.call(chMilestonesService::listMilestones).stream().filter(m -> m.name.equals(name)).findAny().orElse(null);
+    }
+
+    /**
+     * Sends an idempotent request, retrying its transient failures.
+     */
+    private <T> T call(ClubhouseLimiter.Request<T> request) throws IOException {
+        return retrier.call(() -> limiter.call(request));
     }
 
     private static boolean doneButNotComplete(EpicSlim epic) {
@@ -188,7 +380,7 @@ public class Housekeeping {
     }
 
     private EpicState getEpicFinishedState() throws IOException {
-        EpicWorkflow epicWorkflow = chEpicWorkflowService.getEpicWorkflow();
+        EpicWorkflow epicWorkflow = call(chEpicWorkflowService::getEpicWorkflow);
         for (EpicState epicState : epicWorkflow.epic_states) {
             if ("done".equalsIgnoreCase(epicState.type)) {
                 return epicState;
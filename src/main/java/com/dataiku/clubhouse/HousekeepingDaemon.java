@@ -0,0 +1,127 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import io.clubhouse4j.api.v3beta.EpicSlim;
+import io.clubhouse4j.api.v3beta.Milestone;
+
+/**
+ * Runs the housekeeping policies in cycles, touching only the entities that changed since the previous cycle.
+ * <p>
+ * Clubhouse cannot list the epics or milestones updated since a date, so each cycle lists them, but compares them with
+ * the snapshot of the previous cycle: only the epics updated since then, or whose stories were updated since then, are
+ * closed or assigned to a milestone, and milestones are only reordered when they changed. Stories are only searched
+ * since the watermarks of the previous cycle. The first cycle processes the whole workspace. The epics, milestones and
+ * stories whose update failed are processed again by the next cycle.
+ */
+public class HousekeepingDaemon {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.housekeeping.daemon");
+    // Margin for the clock of Clubhouse being behind ours, and for the updates in flight at the end of a cycle.
+    private static final Duration WATERMARK_OVERLAP = Duration.ofMinutes(5);
+
+    private final Housekeeping housekeeping;
+    private final HousekeepingState state;
+    private final Duration closeDelay;
+    private final Duration interval;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // Snapshot of the previous cycle: updated_at of the epics by id, and the milestones in their order.
+    private Map<Long, Instant> epicSnapshot;
+    private List<String> milestoneSnapshot;
+    private Instant storiesUpdatedUntil;
+
+    public HousekeepingDaemon(Housekeeping housekeeping, HousekeepingState state, Duration closeDelay, Duration interval) {
+        this.housekeeping = housekeeping;
+        this.state = state;
+        this.closeDelay = closeDelay;
+        this.interval = interval;
+    }
+
+    /**
+     * Runs cycles until {@link #stop()} is called. A failed cycle is logged, and its work is done again by the next.
+     */
+    public void run() {
+        logger.info("Running housekeeping every " + interval.toMinutes() + " minutes");
+        try {
+            do {
+                try {
+                    runCycle();
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Housekeeping cycle failed, retrying in " + interval.toMinutes() + " minutes", e);
+                }
+            } while (!stopped.await(interval.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Housekeeping stopped");
+    }
+
+    public void stop() {
+        stopped.countDown();
+    }
+
+    void runCycle() throws IOException {
+        Instant cycleStart = Instant.now();
+        List<EpicSlim> epics = housekeeping.listEpics();
+        List<Milestone> milestones = housekeeping.listMilestones();
+
+        List<EpicSlim> changedEpics = epics;
+        if (epicSnapshot != null) {
+            Set<Long> touchedEpicIds = housekeeping.findEpicsOfStoriesUpdated(storiesUpdatedUntil.minus(WATERMARK_OVERLAP), cycleStart);
+            changedEpics = epics.stream()
+                    .filter(epic -> !Objects.equals(epicSnapshot.get(epic.id), epic.updated_at) || touchedEpicIds.contains(epic.id))
+                    .collect(Collectors.toList());
+        }
+        logger.info("Housekeeping cycle: " + changedEpics.size() + " epics changed out of " + epics.size());
+        Set<Long> failedEpicIds = new HashSet<>();
+        housekeeping.closeCompletedEpics(changedEpics).forEach(epic -> failedEpicIds.add(epic.id));
+        boolean milestonesCreated = housekeeping.assignMilestones(changedEpics, milestones);
+        List<String> milestoneOrder = milestones.stream().map(m -> m.id + " " + m.name).collect(Collectors.toList());
+        int failedMoves = 0;
+        if (milestonesCreated || !milestoneOrder.equals(milestoneSnapshot)) {
+            failedMoves = housekeeping.reorderMilestones();
+        }
+
+        Instant deadline = cycleStart.minus(closeDelay);
+        Instant archivedUntil = state.getStoriesArchivedUntil();
+        int failedChunks = housekeeping.archiveCompletedStories(archivedUntil == null ? StorySearch.ORIGIN : archivedUntil.minus(WATERMARK_OVERLAP), deadline);
+        if (failedChunks == 0) {
+            state.setStoriesArchivedUntil(deadline);
+        } else {
+            // The stories that were not archived must be searched again by the next cycle.
+            logger.warning("Keeping the archive watermark at " + archivedUntil + ": " + failedChunks + " chunks of stories failed");
+        }
+        // Epics are not searchable by date: the snapshot is filtered locally, and only the epics to archive are updated.
+        housekeeping.archiveCompletedEpics(epics, deadline).forEach(epic -> failedEpicIds.add(epic.id));
+
+        // The epics and milestones updated by this cycle differ from the snapshot: the next cycle checks them again,
+        // without changing them. The epics and milestones whose update failed are left out of the snapshot, so that
+        // the next cycle sees them as changed and updates them again.
+        Map<Long, Instant> snapshot = new HashMap<>();
+        for (EpicSlim epic : epics) {
+            if (!failedEpicIds.contains(epic.id)) {
+                snapshot.put(epic.id, epic.updated_at);
+            }
+        }
+        if (!failedEpicIds.isEmpty()) {
+            logger.warning(failedEpicIds.size() + " epics failed to update: they are retried by the next cycle");
+        }
+        epicSnapshot = snapshot;
+        milestoneSnapshot = failedMoves == 0 ? milestoneOrder : null;
+        storiesUpdatedUntil = cycleStart;
+        logger.info("Housekeeping cycle done in " + Duration.between(cycleStart, Instant.now()).getSeconds() + " s");
+    }
+}
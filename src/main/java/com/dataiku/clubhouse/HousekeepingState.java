@@ -0,0 +1,55 @@
+package com.dataiku.clubhouse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * Watermark of the housekeeping daemon: the stories completed before it are archived, so the next cycles, and the
+ * next runs of the daemon, only search the stories completed since then.
+ */
+public class HousekeepingState {
+
+    private transient File file;
+
+    // ISO-8601 completed_at watermark
+    public String storiesArchivedUntil;
+
+    public static HousekeepingState load(File file) throws IOException {
+        HousekeepingState state = null;
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                state = GsonHelper.GSON.fromJson(reader, HousekeepingState.class);
+            }
+        }
+        if (state == null) {
+            state = new HousekeepingState();
+        }
+        state.file = file;
+        return state;
+    }
+
+    public synchronized Instant getStoriesArchivedUntil() {
+        return storiesArchivedUntil == null ? null : Instant.parse(storiesArchivedUntil);
+    }
+
+    public synchronized void setStoriesArchivedUntil(Instant watermark) throws IOException {
+        storiesArchivedUntil = watermark.toString();
+        save();
+    }
+
+    private void save() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            GsonHelper.GSON.toJson(this, writer);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
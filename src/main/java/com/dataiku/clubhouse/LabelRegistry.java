@@ -0,0 +1,122 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.clubhouse4j.api.v3beta.CreateLabelParams;
+import io.clubhouse4j.api.v3beta.Label;
+import io.clubhouse4j.api.v3beta.LabelsService;
+
+/**
+ * Clubhouse labels by name. The labels of a migration are provisioned once before its stories are created, so that
+ * stories only reference them by name instead of making Clubhouse resolve or create them again for every story.
+ * Looking up a label does not block the other workers, and the workers provisioning the same missing label at the same
+ * time wait for a single creation.
+ */
+public class LabelRegistry {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.labels");
+
+    private final LabelsService labelsService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final ConcurrentMap<String, CompletableFuture<Label>> labelsByName = new ConcurrentHashMap<>();
+    private volatile MigrationJournal journal = MigrationJournal.disabled();
+
+    @VisibleForTesting
+    LabelRegistry(LabelsService labelsService, ClubhouseLimiter limiter, RequestRetrier retrier, List<Label> labels) {
+        this.labelsService = labelsService;
+        this.limiter = limiter;
+        this.retrier = retrier;
+        for (Label label : labels) {
+            labelsByName.put(key(label.name), CompletableFuture.completedFuture(label));
+        }
+    }
+
+    public static LabelRegistry load(LabelsService labelsService, ClubhouseLimiter limiter, RequestRetrier retrier) throws IOException {
+        LabelRegistry registry = new LabelRegistry(labelsService, limiter, retrier, retrier.call(() -> limiter.call(labelsService::listLabels)));
+        logger.info("Loaded " + registry.labelsByName.size() + " labels.");
+        return registry;
+    }
+
+    public void setJournal(MigrationJournal journal) {
+        this.journal = journal;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Creates the label if it does not exist yet.
+     */
+    public Label provision(String name, String color) throws IOException {
+        CompletableFuture<Label> label = labelsByName.get(key(name));
+        if (label == null) {
+            CompletableFuture<Label> creation = new CompletableFuture<>();
+            label = labelsByName.putIfAbsent(key(name), creation);
+            if (label == null) {
+                return create(name, color, creation);
+            }
+        }
+        try {
+            return label.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Label create(String name, String color, CompletableFuture<Label> creation) throws IOException {
+        try {
+            logger.info("Creating label " + name);
+            // A creation that timed out may have succeeded: look for the label before creating it again.
+            Label label = retrier.call(() -> limiter.call(() -> labelsService.createLabel(new CreateLabelParams(name, color))), () -> find(name));
+            journal.label(name, label.id);
+            creation.complete(label);
+            return label;
+        } catch (IOException | RuntimeException e) {
+            // Let the next request try again, and fail the ones that were waiting for this creation.
+            labelsByName.remove(key(name), creation);
+            creation.completeExceptionally(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+            throw e;
+        }
+    }
+
+    private Label find(String name) throws IOException {
+        return limiter.call(labelsService::listLabels).stream().filter(label -> key(name).equals(key(label.name))).findFirst().orElse(null);
+    }
+
+    public Long getId(String name) {
+        Label label = get(name);
+        return label == null ? null : label.id;
+    }
+
+    /**
+     * Returns the label payload of a story: only the name for a provisioned label, or the whole label as a fallback
+     * for a label that could not be provisioned.
+     */
+    public CreateLabelParams toStoryLabel(String name, String color) {
+        Label label = get(name);
+        if (label == null) {
+            return new CreateLabelParams(name, color);
+        }
+        journal.reused(MigrationJournal.Step.LABEL, label.id);
+        return new CreateLabelParams(label.name);
+    }
+
+    private Label get(String name) {
+        CompletableFuture<Label> label = labelsByName.get(key(name));
+        return label == null || !label.isDone() || label.isCompletedExceptionally() ? null : label.join();
+    }
+}
@@ -0,0 +1,152 @@
+package com.dataiku.clubhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.clubhouse4j.api.v3beta.CreateLinkedFileParams;
+import io.clubhouse4j.api.v3beta.LinkedFilesService;
+
+/**
+ * Linked files created during a migration, keyed by URL and uploader: a file attached to several cards is created
+ * once and its id is shared by all the stories.
+ * <p>
+ * Files are created on a bounded pool of their own, so that a card with many attachments creates them concurrently
+ * without taking more than its worker thread from the migration. Each creation still takes a slot of the Clubhouse
+ * limiter, and is retried like the other creations: a retry first looks for the file created by an attempt that
+ * failed after Clubhouse processed it.
+ */
+public class LinkedFileRegistry implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.linkedfiles");
+    private static final int UPLOAD_THREADS = 8;
+
+    private final LinkedFilesService linkedFilesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Key, CompletableFuture<Long>> linkedFiles = new ConcurrentHashMap<>();
+    private volatile MigrationJournal journal = MigrationJournal.disabled();
+
+    public LinkedFileRegistry(LinkedFilesService linkedFilesService, ClubhouseLimiter limiter, RequestRetrier retrier) {
+        this.linkedFilesService = linkedFilesService;
+        this.limiter = limiter;
+        this.retrier = retrier;
+        this.executor = Executors.newFixedThreadPool(UPLOAD_THREADS, new ThreadFactoryBuilder().setNameFormat("linked-files-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Reuses the linked files created by the previous runs of the journal, and records the new ones.
+     */
+    public void setJournal(MigrationJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the id of the linked file with the same URL and uploader, creating it if needed. A failed creation is
+     * forgotten so that the next card referencing the file tries again.
+     */
+    public CompletableFuture<Long> getOrCreate(CreateLinkedFileParams params) {
+        Key key = new Key(params.url, params.uploader_id);
+        CompletableFuture<Long> linkedFile = linkedFiles.computeIfAbsent(key, k -> {
+            Long journaled = journal.getLinkedFileId(params.url, params.uploader_id);
+            if (journaled != null) {
+                journal.reused(MigrationJournal.Step.LINKED_FILE, journaled);
+                return CompletableFuture.completedFuture(journaled);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    Long id = retrier.call(() -> limiter.call(() -> linkedFilesService.createLinkedFile(params)).id, () -> find(params));
+                    journal.linkedFile(params.url, params.uploader_id, id);
+                    return id;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        });
+        linkedFile.whenComplete((id, e) -> {
+            if (e != null) {
+                linkedFiles.remove(key, linkedFile);
+            }
+        });
+        return linkedFile;
+    }
+
+    private Long find(CreateLinkedFileParams params) throws IOException {
+        return limiter.call(linkedFilesService::listLinkedFiles).stream()
+                .filter(linkedFile -> Objects.equals(params.url, linkedFile.url) && Objects.equals(params.uploader_id, linkedFile.uploader_id))
+                .map(linkedFile -> linkedFile.id)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Waits for a linked file returned by {@link #getOrCreate(CreateLinkedFileParams)}, rethrowing its creation error.
+     */
+    public static Long await(CompletableFuture<Long> linkedFile) throws IOException {
+        try {
+            return linkedFile.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits for the pending creations and releases the pool.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while waiting for the linked files to be created.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Key {
+        private final String url;
+        private final UUID uploaderId;
+
+        Key(String url, UUID uploaderId) {
+            this.url = url;
+            this.uploaderId = uploaderId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(url, other.url) && Objects.equals(uploaderId, other.uploaderId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, uploaderId);
+        }
+    }
+}
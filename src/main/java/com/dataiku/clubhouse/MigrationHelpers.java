@@ -4,11 +4,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
-import io.clubhouse4j.api.v3beta.CreateEpicParams;
-import io.clubhouse4j.api.v3beta.Epic;
-import io.clubhouse4j.api.v3beta.EpicSlim;
 import io.clubhouse4j.api.v3beta.EpicsService;
 import io.clubhouse4j.api.v3beta.Project;
 import io.clubhouse4j.api.v3beta.ProjectsService;
@@ -25,25 +21,11 @@ public class MigrationHelpers {
                 .orElseThrow(() -> new IllegalArgumentException("Unknown project on Clubhouse: " + projectName));
     }
 
-    public static EpicSlim getOrCreateEpic(EpicsService chEpicsService, List<EpicSlim> chEpicList, String epicName) throws IOException {
-        EpicSlim epic = getEpic(chEpicList, epicName);
-        if (epic == null) {
-            CreateEpicParams params = new CreateEpicParams();
-            params.name = epicName;
-            Epic createdEpic = chEpicsService.createEpic(params);
-            epic = EpicSlim.fromEpic(createdEpic);
-            chEpicList.add(epic);
-        }
-        return epic;
-    }
-
-    public static EpicSlim getEpic(List<EpicSlim> chEpicList, String epicName) {
-        for (EpicSlim epic : chEpicList) {
-            if (Objects.equals(epic.name, epicName)) {
-                return epic;
-            }
-        }
-        return null;
+    /**
+     * Loads the epics of the workspace into a registry that resolves, and creates if needed, the epics by name.
+     */
+    public static EpicRegistry getEpicRegistry(EpicsService chEpicsService, ClubhouseLimiter limiter, RequestRetrier retrier) throws IOException {
+        return EpicRegistry.load(chEpicsService, limiter, retrier);
     }
 
     public static WorkflowState getStoryState(TeamsService teamsService, Project project, String stateName) throws IOException {
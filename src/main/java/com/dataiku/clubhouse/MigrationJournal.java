@@ -0,0 +1,497 @@
+package com.dataiku.clubhouse;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonParseException;
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * Append-only local journal of a migration: the steps of each migrated item and the Clubhouse entities created for
+ * it, one JSON entry per line.
+ * <p>
+ * Entries are appended without waiting, and written then synced to disk by batches every
+ * {@value #SYNC_INTERVAL_MILLIS} ms, so a crash loses at most the last batch. A line torn by a crash is skipped on
+ * replay. When a migration restarts with the same journal, completed items are skipped without asking Clubhouse, and
+ * half-done items reuse the linked files created before the crash instead of leaving them orphaned.
+ * <p>
+ * Each opening of the journal is a run, whose entries carry its id, so that the entities created by one run can be
+ * rolled back: the entries of a rolled back run are ignored by the replay. The epics, linked files and labels that a
+ * run reuses from another one are recorded too, so that the rollback of their creator keeps them.
+ */
+public class MigrationJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.journal");
+    private static final long SYNC_INTERVAL_MILLIS = 100;
+
+    public enum Step {
+        // The migration of the item started.
+        STARTED,
+        // A linked file was created, keyed by URL and uploader.
+        LINKED_FILE,
+        // An epic was created, keyed by name.
+        EPIC,
+        // A label was created, keyed by name.
+        LABEL,
+        // The story of the item was created: the item is done.
+        STORY,
+        // The migration of the item failed, and will be retried by the next run.
+        FAILED,
+        // An epic, linked file or label created by another run was used by this one, keyed by the step that created it.
+        REUSED,
+        // The entities created by the run in key were deleted.
+        ROLLED_BACK
+    }
+
+    private static class Entry {
+        private String run;
+        private String at;
+        private Step step;
+        private String item;
+        private String key;
+        private Long id;
+    }
+
+    private final File file;
+    private final String runId;
+    private final FileChannel channel;
+    private final Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    // Guards the writes to the file, so that a sync never holds the monitor of the journal, taken by every append.
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService syncer;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Map<String, Long> storyIds = new HashMap<>();
+    private final Map<String, Long> linkedFileIds = new HashMap<>();
+    private final Map<String, Long> epicIds = new HashMap<>();
+    private final Map<String, Step> itemSteps = new HashMap<>();
+    private final Map<String, CreatedEntities> createdByRun = new LinkedHashMap<>();
+    // Run that created each epic, linked file and label, and the other runs that reused it, by entity key.
+    private final Map<String, String> creatorRuns = new HashMap<>();
+    private final Map<String, Set<String>> reusingRuns = new HashMap<>();
+    // Entities whose reuse by this run was already checked: each lookup of the registries reports its entity, and
+    // only the first report of each entity takes the monitor.
+    private final Set<String> checkedReuses = ConcurrentHashMap.newKeySet();
+
+    private MigrationJournal(File file) throws IOException {
+        this.file = file;
+        this.runId = Instant.now().toString();
+        if (file == null) {
+            this.channel = null;
+            this.syncer = null;
+            return;
+        }
+        replay();
+        boolean tornLine = endsWithTornLine();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (tornLine) {
+            // Terminate the torn line, so that it does not swallow the next entry.
+            pendingLines.add("\n");
+        }
+        logger.info("Recording run " + runId + " in the journal " + file);
+        this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("journal-sync").setDaemon(true).build());
+        this.syncer.scheduleWithFixedDelay(this::syncQuietly, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the journal in the given file, replaying the entries of the previous runs.
+     */
+    public static MigrationJournal open(File file) throws IOException {
+        return new MigrationJournal(file);
+    }
+
+    /**
+     * Journal recording nothing, for migrations without resume.
+     */
+    public static MigrationJournal disabled() {
+        try {
+            return new MigrationJournal(null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean endsWithTornLine() throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        int replayed = rebuild();
+        logger.info("Replayed " + replayed + " journal entries: " + storyIds.size() + " items done, " + getUnfinishedItems().size() + " unfinished, " + linkedFileIds.size() + " linked files.");
+    }
+
+    /**
+     * Rebuilds the state from the entries of the runs that were not rolled back. The file is read twice, once for the
+     * rolled back runs and once for the entries to apply, so that only the state is kept in memory, not the entries.
+     *
+     * @return the number of entries applied
+     */
+    private synchronized int rebuild() throws IOException {
+        storyIds.clear();
+        linkedFileIds.clear();
+        epicIds.clear();
+        itemSteps.clear();
+        createdByRun.clear();
+        creatorRuns.clear();
+        reusingRuns.clear();
+        Set<String> rolledBackRuns = new HashSet<>();
+        int skipped = readEntries(entry -> {
+            if (entry.step == Step.ROLLED_BACK) {
+                rolledBackRuns.add(entry.key);
+            }
+        });
+        AtomicInteger applied = new AtomicInteger();
+        readEntries(entry -> {
+            if (!rolledBackRuns.contains(String.valueOf(entry.run))) {
+                apply(entry);
+                applied.incrementAndGet();
+            }
+        });
+        if (skipped > 0) {
+            logger.warning("Skipped " + skipped + " torn journal entries.");
+        }
+        return applied.get();
+    }
+
+    /**
+     * Streams the entries of the file, skipping the lines torn by a crash.
+     *
+     * @return the number of lines skipped
+     */
+    private int readEntries(Consumer<Entry> consumer) throws IOException {
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Entry entry;
+                try {
+                    entry = GsonHelper.GSON.fromJson(line, Entry.class);
+                } catch (JsonParseException e) {
+                    entry = null;
+                }
+                if (entry == null || entry.step == null) {
+                    skipped++;
+                    continue;
+                }
+                consumer.accept(entry);
+            }
+        }
+        return skipped;
+    }
+
+    private synchronized void apply(Entry entry) {
+        String run = String.valueOf(entry.run);
+        switch (entry.step) {
+            case LINKED_FILE:
+                linkedFileIds.put(entry.key, entry.id);
+                created(run).linkedFiles.add(entry.id);
+                creatorRuns.put(entityKey(entry.step, entry.id), run);
+                break;
+            case EPIC:
+                epicIds.put(entry.key, entry.id);
+                created(run).epics.add(entry.id);
+                creatorRuns.put(entityKey(entry.step, entry.id), run);
+                break;
+            case LABEL:
+                created(run).labels.add(entry.id);
+                creatorRuns.put(entityKey(entry.step, entry.id), run);
+                break;
+            case STORY:
+                storyIds.put(entry.item, entry.id);
+                itemSteps.put(entry.item, entry.step);
+                created(run).stories.add(entry.id);
+                break;
+            case REUSED:
+                reusingRuns.computeIfAbsent(entry.key + " " + entry.id, key -> new HashSet<>()).add(run);
+                break;
+            case ROLLED_BACK:
+                break;
+            default:
+                itemSteps.put(entry.item, entry.step);
+                break;
+        }
+    }
+
+    private CreatedEntities created(String run) {
+        return createdByRun.computeIfAbsent(run, r -> new CreatedEntities());
+    }
+
+    private static String entityKey(Step step, long id) {
+        return step.name() + " " + id;
+    }
+
+    public void started(String item) {
+        append(Step.STARTED, item, null, null);
+    }
+
+    public void linkedFile(String url, UUID uploaderId, long id) {
+        append(Step.LINKED_FILE, null, linkedFileKey(url, uploaderId), id);
+    }
+
+    public void epic(String name, long id) {
+        append(Step.EPIC, null, name, id);
+    }
+
+    public void label(String name, long id) {
+        append(Step.LABEL, null, name, id);
+    }
+
+    public void story(String item, long storyId) {
+        append(Step.STORY, item, null, storyId);
+    }
+
+    public void failed(String item) {
+        append(Step.FAILED, item, null, null);
+    }
+
+    /**
+     * Records that this run used an epic, linked file or label, given by the step that created it, so that rolling
+     * back the run that created it does not delete it. Only the first use of an entity created by another run is
+     * recorded.
+     */
+    public void reused(Step step, long id) {
+        String entity = entityKey(step, id);
+        if (file == null || !checkedReuses.add(entity)) {
+            return;
+        }
+        synchronized (this) {
+            String creator = creatorRuns.get(entity);
+            if (creator == null || creator.equals(runId) || reusingRuns.getOrDefault(entity, Collections.emptySet()).contains(runId)) {
+                return;
+            }
+            append(Step.REUSED, null, step.name(), id);
+        }
+    }
+
+    /**
+     * Records that the entities created by the given run were deleted: the next replays ignore that run.
+     */
+    public void rolledBack(String run) throws IOException {
+        if (file == null) {
+            return;
+        }
+        append(Step.ROLLED_BACK, null, run, null);
+        // No entry can be applied between the sync and the rebuild, which would drop it from the state.
+        synchronized (this) {
+            sync();
+            rebuild();
+        }
+    }
+
+    private void append(Step step, String item, String key, Long id) {
+        if (file == null) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.run = runId;
+        entry.at = Instant.now().toString();
+        entry.step = step;
+        entry.item = item;
+        entry.key = key;
+        entry.id = id;
+        String line = GsonHelper.GSON.toJson(entry) + "\n";
+        // Queued with the state change, so that the lines are written in the order the entries were applied.
+        synchronized (this) {
+            apply(entry);
+            pendingLines.add(line);
+        }
+    }
+
+    /**
+     * Returns the stories created for the items done, by item.
+     */
+    public synchronized Map<String, Long> getStoryIds() {
+        return new HashMap<>(storyIds);
+    }
+
+    public synchronized Long getLinkedFileId(String url, UUID uploaderId) {
+        return linkedFileIds.get(linkedFileKey(url, uploaderId));
+    }
+
+    /**
+     * Returns the linked files created by the previous runs, by URL and uploader key.
+     */
+    public synchronized Map<String, Long> getLinkedFileIds() {
+        return new HashMap<>(linkedFileIds);
+    }
+
+    public synchronized Map<String, Long> getEpicIds() {
+        return new HashMap<>(epicIds);
+    }
+
+    /**
+     * Returns the items whose migration started but did not create their story.
+     */
+    public synchronized List<String> getUnfinishedItems() {
+        List<String> unfinished = new ArrayList<>();
+        itemSteps.forEach((item, step) -> {
+            if (step != Step.STORY) {
+                unfinished.add(item);
+            }
+        });
+        Collections.sort(unfinished);
+        return unfinished;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * Returns the runs that created entities and were not rolled back, oldest first.
+     */
+    public synchronized List<String> getRuns() {
+        return new ArrayList<>(createdByRun.keySet());
+    }
+
+    /**
+     * Returns the entities created by the given run, empty if it created none or was rolled back.
+     */
+    public synchronized CreatedEntities getCreated(String run) {
+        CreatedEntities copy = new CreatedEntities();
+        CreatedEntities created = createdByRun.get(run);
+        if (created != null) {
+            copy.stories.addAll(created.stories);
+            copy.epics.addAll(created.epics);
+            copy.linkedFiles.addAll(created.linkedFiles);
+            copy.labels.addAll(created.labels);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the runs, not rolled back, that reused an epic, linked file or label given by the step that created it.
+     */
+    public synchronized Set<String> getReusingRuns(Step step, long id) {
+        return new HashSet<>(reusingRuns.getOrDefault(entityKey(step, id), Collections.emptySet()));
+    }
+
+    static String linkedFileKey(String url, UUID uploaderId) {
+        return url + " " + uploaderId;
+    }
+
+    /**
+     * Ids of the Clubhouse entities created by a run.
+     */
+    public static class CreatedEntities {
+        public final List<Long> stories = new ArrayList<>();
+        public final List<Long> epics = new ArrayList<>();
+        public final List<Long> linkedFiles = new ArrayList<>();
+        public final List<Long> labels = new ArrayList<>();
+
+        public int size() {
+            return stories.size() + epics.size() + linkedFiles.size() + labels.size();
+        }
+    }
+
+    /**
+     * Writes and syncs the pending entries. The entries keep being appended meanwhile: only the other syncs wait.
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            if (channel == null || !channel.isOpen()) {
+                return;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (String line = pendingLines.poll(); line != null; line = pendingLines.poll()) {
+                lines.append(line);
+            }
+            if (lines.length() == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to sync the migration journal " + file, e);
+        }
+    }
+
+    /**
+     * Syncs the remaining entries and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        syncer.shutdownNow();
+        synchronized (writeLock) {
+            sync();
+            channel.close();
+        }
+        closed.countDown();
+    }
+
+    /**
+     * On JVM shutdown (e.g. Ctrl-C), asks the migration to stop taking new items, gives the items in progress the
+     * grace delay to finish and the migration to close the journal, then syncs whatever was recorded.
+     */
+    public void closeOnShutdown(Runnable requestStop, Duration grace) {
+        if (channel == null) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (closed.getCount() == 0) {
+                return;
+            }
+            logger.warning("Shutting down: stopping the migration and closing the journal.");
+            requestStop.run();
+            try {
+                if (!closed.await(grace.toMillis(), TimeUnit.MILLISECONDS)) {
+                    logger.warning("The migration did not stop within " + grace.getSeconds() + " seconds: unfinished items will be resumed by the next run.");
+                    syncQuietly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                syncQuietly();
+            }
+        }, "journal-shutdown"));
+    }
+}
@@ -0,0 +1,217 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.egit.github.core.client.RequestException;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Retries the transient failures (429, 5xx, timeouts) of the requests to one API, with a jittered exponential backoff.
+ * <p>
+ * A {@code Retry-After} delay is honoured and holds the requests of all the threads, not only the rejected one. Each
+ * request is tried at most {@code maxAttempts} times, and the retries of a whole run are capped by a budget, so that
+ * an API that is down fails the run quickly instead of retrying every item.
+ * <p>
+ * Only idempotent requests are retried blindly. A creation is retried with a guard, which looks for the result of
+ * a previous attempt that failed after Clubhouse processed it.
+ */
+public class RequestRetrier {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.retrier");
+
+    private static final long BASE_BACKOFF_MILLIS = 1_000L;
+    private static final long MAX_BACKOFF_MILLIS = 60_000L;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final int DEFAULT_RUN_BUDGET = 1_000;
+    private static final Set<Integer> TRANSIENT_STATUSES = ImmutableSet.of(429, 500, 502, 503, 504);
+    // Neither clubhouse4j nor trello4j expose the response status or headers: they are part of the message, e.g.
+    // "Server returned HTTP response code: 503 for URL: ...". The status must follow its keyword, so that the ids and
+    // counts of the message are not taken for one.
+    private static final Pattern STATUS = Pattern.compile("\\b(?:response code|status(?: code)?|http(?:/\\d\\.\\d)?)[ :=]{1,3}(\\d{3})\\b");
+    private static final Pattern RETRY_AFTER = Pattern.compile("\\bretry-after\"?[ :=]{1,3}(\\d+)\\b");
+
+    public interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    private final String apiName;
+    private final int maxAttempts;
+    private final AtomicInteger retryBudget;
+    private long pausedUntilMillis;
+
+    public RequestRetrier(String apiName) {
+        this(apiName, DEFAULT_MAX_ATTEMPTS, DEFAULT_RUN_BUDGET);
+    }
+
+    public RequestRetrier(String apiName, int maxAttempts, int runBudget) {
+        this.apiName = apiName;
+        this.maxAttempts = maxAttempts;
+        this.retryBudget = new AtomicInteger(runBudget);
+    }
+
+    /**
+     * Sends an idempotent request, retrying its transient failures.
+     */
+    public <T> T call(Request<T> request) throws IOException {
+        return call(request, null);
+    }
+
+    /**
+     * Sends a request that is not idempotent. Before each retry, the guard looks for the result of the previous
+     * attempts, and is returned instead of sending the request again if it is not null.
+     */
+    public <T> T call(Request<T> request, Request<T> guard) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            awaitPause();
+            try {
+                if (attempt > 1 && guard != null) {
+                    T previous = guard.execute();
+                    if (previous != null) {
+                        return previous;
+                    }
+                }
+                return request.execute();
+            } catch (IOException | RuntimeException e) {
+                long backoff = backoffMillis(e, attempt);
+                if (backoff < 0) {
+                    throw e;
+                }
+                logger.warning(apiName + " request failed (" + e.getMessage() + "). Retrying in " + backoff + " ms.");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry a " + apiName + " request");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends an idempotent request of a client reporting its failures with unchecked exceptions, like trello4j.
+     */
+    public <T> T get(Supplier<T> request) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                awaitPause();
+                return request.get();
+            } catch (InterruptedIOException e) {
+                throw new IllegalStateException(e);
+            } catch (RuntimeException e) {
+                long backoff = backoffMillis(e, attempt);
+                if (backoff < 0) {
+                    throw e;
+                }
+                logger.warning(apiName + " request failed (" + e.getMessage() + "). Retrying in " + backoff + " ms.");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public int getRemainingBudget() {
+        return Math.max(0, retryBudget.get());
+    }
+
+    /**
+     * Returns the delay before retrying a failed attempt, or -1 if the failure is not transient or the retry budgets
+     * are exhausted.
+     */
+    private long backoffMillis(Exception e, int attempt) {
+        if (!isTransient(e) || attempt >= maxAttempts) {
+            return -1;
+        }
+        int budget = retryBudget.decrementAndGet();
+        if (budget < 0) {
+            if (budget == -1) {
+                logger.warning("The " + apiName + " retry budget of this run is exhausted: failures are no longer retried.");
+            }
+            return -1;
+        }
+        Long retryAfterSeconds = getRetryAfterSeconds(e);
+        if (retryAfterSeconds != null) {
+            long delay = retryAfterSeconds * 1000L + ThreadLocalRandom.current().nextLong(250);
+            pause(delay);
+            return delay;
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    private synchronized void pause(long delayMillis) {
+        pausedUntilMillis = Math.max(pausedUntilMillis, System.currentTimeMillis() + delayMillis);
+    }
+
+    private void awaitPause() throws InterruptedIOException {
+        long waitMillis;
+        synchronized (this) {
+            waitMillis = pausedUntilMillis - System.currentTimeMillis();
+        }
+        if (waitMillis > 0) {
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while " + apiName + " requests are paused");
+            }
+        }
+    }
+
+    static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectException) {
+                return true;
+            }
+            if (cause instanceof InterruptedIOException) {
+                return false;
+            }
+            Integer status = getStatus(cause);
+            if (status != null && TRANSIENT_STATUSES.contains(status)) {
+                return true;
+            }
+            String message = String.valueOf(cause.getMessage()).toLowerCase(Locale.ROOT);
+            if (message.contains("too many requests") || message.contains("timed out")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the HTTP status of a failure, typed for the Github client, parsed from the message for the others, or
+     * null if it has none.
+     */
+    static Integer getStatus(Throwable e) {
+        if (e instanceof RequestException) {
+            return ((RequestException) e).getStatus();
+        }
+        Matcher matcher = STATUS.matcher(String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT));
+        return matcher.find() ? Integer.valueOf(matcher.group(1)) : null;
+    }
+
+    static Long getRetryAfterSeconds(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            Matcher matcher = RETRY_AFTER.matcher(String.valueOf(cause.getMessage()).toLowerCase(Locale.ROOT));
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        }
+        return null;
+    }
+}
@@ -36,16 +36,20 @@ public class Root {
         if (migrationTrello) {
             Trello trelloClient = new TrelloImpl(credentials.trelloApiKey, credentials.trelloToken);
             TrelloMigrationParams trelloMigrationParams = loadTrelloMigrationParams();
-            TrelloMigration trelloMigration = new TrelloMigration(clubhouseClient, "DIP", trelloClient, "dataikurd", trelloMigrationParams);
-            trelloMigration.setDryRun(dryRun);
-            trelloMigration.run(32);
+            try (TrelloMigration trelloMigration = new TrelloMigration(clubhouseClient, "DIP", trelloClient, "dataikurd", trelloMigrationParams)) {
+                trelloMigration.setDryRun(dryRun);
+                trelloMigration.setJournal(MigrationJournal.open(new File("trello-journal.log")));
+                trelloMigration.run();
+            }
         }
         if (migrationGithub) {
             GithubMigrationParams githubMigrationParams = loadGithubMigrationParams();
             GitHubClient githubClient = gitHubClient(credentials.githubToken);
             GithubMigration githubMigration = new GithubMigration(clubhouseClient, "DIP", githubClient, "dip", githubMigrationParams);
             githubMigration.setDryRun(dryRun);
-            githubMigration.run(4, ALL);
+            githubMigration.setSyncState(GithubSyncState.load(new File("github-sync.json")));
+            githubMigration.setJournal(MigrationJournal.open(new File("github-journal.log")));
+            githubMigration.run(ALL);
         }
 
         if (!dryRun) {
@@ -74,7 +78,8 @@ public class Root {
     }
 
     private static GitHubClient gitHubClient(String token) {
-        GitHubClient client = new GitHubClient();
+        ThrottledGitHubClient client = new ThrottledGitHubClient(new GithubRequestScheduler());
+        client.setResponseCache(new GithubResponseCache(new File("github-cache")));
         client.setOAuth2Token(token);
         return client;
     }
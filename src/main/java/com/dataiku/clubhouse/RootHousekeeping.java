@@ -0,0 +1,40 @@
+package com.dataiku.clubhouse;
+
+import static com.dataiku.clubhouse.LogConfigurator.configureLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.logging.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import io.clubhouse4j.api.v3beta.ClubhouseClient;
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * Runs the housekeeping continuously: {@code RootHousekeeping [interval in minutes, 15] [close delay in days, 30]}.
+ */
+public class RootHousekeeping {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku");
+
+    public static void main(String[] args) throws Exception {
+        configureLogger(logger);
+
+        Duration interval = Duration.ofMinutes(args.length > 0 ? Long.parseLong(args[0]) : 15);
+        Duration closeDelay = Duration.ofDays(args.length > 1 ? Long.parseLong(args[1]) : 30);
+        Credentials credentials = loadCredentials();
+        Housekeeping housekeeping = new Housekeeping(new ClubhouseClient(credentials.clubhouseToken));
+        HousekeepingDaemon daemon = new HousekeepingDaemon(housekeeping, HousekeepingState.load(new File("housekeeping-state.json")), closeDelay, interval);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "housekeeping-shutdown"));
+        daemon.run();
+    }
+
+    private static Credentials loadCredentials() throws IOException {
+        try (BufferedReader bufferedReader = Files.newReader(new File("credentials.json"), Charsets.UTF_8)) {
+            return GsonHelper.GSON.fromJson(bufferedReader, Credentials.class);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.dataiku.clubhouse;
+
+import static com.dataiku.clubhouse.LogConfigurator.configureLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import io.clubhouse4j.api.v3beta.ClubhouseClient;
+import io.clubhouse4j.api.v3beta.GsonHelper;
+
+/**
+ * Deletes what one run of a migration created: {@code RootRollback <journal file> [run id, the last run by default]}.
+ */
+public class RootRollback {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku");
+
+    public static void main(String[] args) throws Exception {
+        configureLogger(logger);
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: RootRollback <journal file> [run id]");
+        }
+
+        try (MigrationJournal journal = MigrationJournal.open(new File(args[0]))) {
+            List<String> runs = journal.getRuns();
+            for (String run : runs) {
+                logger.info("Run " + run + ": " + journal.getCreated(run).size() + " entities created");
+            }
+            if (runs.isEmpty()) {
+                logger.info("Nothing to roll back.");
+                return;
+            }
+            String runId = args.length > 1 ? args[1] : runs.get(runs.size() - 1);
+            if (!runs.contains(runId)) {
+                throw new IllegalArgumentException("Unknown or rolled back run: " + runId);
+            }
+            Credentials credentials = loadCredentials();
+            new ClubhouseCleaner(new ClubhouseClient(credentials.clubhouseToken)).rollback(journal, runId);
+        }
+    }
+
+    private static Credentials loadCredentials() throws IOException {
+        try (BufferedReader bufferedReader = Files.newReader(new File("credentials.json"), Charsets.UTF_8)) {
+            return GsonHelper.GSON.fromJson(bufferedReader, Credentials.class);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.clubhouse4j.api.v3beta.CreateStoriesParams;
+import io.clubhouse4j.api.v3beta.CreateStoryParams;
+import io.clubhouse4j.api.v3beta.SearchStoriesParams;
+import io.clubhouse4j.api.v3beta.StoriesService;
+import io.clubhouse4j.api.v3beta.Story;
+import io.clubhouse4j.api.v3beta.StorySlim;
+
+/**
+ * Creates the stories built by the migration workers through the bulk endpoint of Clubhouse. Stories are grouped
+ * until a batch is full or its oldest story has waited long enough, and each batch is written on a pool of its own,
+ * sized by the Clubhouse limiter, so that the workers go on with the next items.
+ * <p>
+ * Each story gets its own future: when a batch is rejected, its stories are created one by one so that only the
+ * failing ones fail, and their source items can be retried. As the batch may have been processed before failing, each
+ * story is first looked up by external id, and its creation is retried with the same guard.
+ */
+public class StoryBatchWriter {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.stories");
+    private static final int MAX_PENDING_BATCHES = 8;
+
+    private final StoriesService storiesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService timer;
+    // Bounds the stories waiting to be written, so that the workers slow down when Clubhouse lags behind.
+    private final Semaphore pendingPermits;
+    private List<PendingStory> batch = new ArrayList<>();
+    private ScheduledFuture<?> lingerFlush;
+
+    public StoryBatchWriter(StoriesService storiesService, ClubhouseLimiter limiter, RequestRetrier retrier, int batchSize, long lingerMillis) {
+        this.storiesService = storiesService;
+        this.limiter = limiter;
+        this.retrier = retrier;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.writers = limiter.newExecutor("story-writer-%d");
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("story-writer-timer").setDaemon(true).build());
+        this.pendingPermits = new Semaphore(batchSize * MAX_PENDING_BATCHES);
+    }
+
+    /**
+     * Queues a story for creation and returns the future of its id. Blocks while too many stories are waiting to be
+     * written.
+     */
+    public CompletableFuture<Long> create(CreateStoryParams params) {
+        CompletableFuture<Long> storyId = new CompletableFuture<>();
+        try {
+            pendingPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            storyId.completeExceptionally(e);
+            return storyId;
+        }
+        storyId.whenComplete((id, e) -> pendingPermits.release());
+        synchronized (this) {
+            batch.add(new PendingStory(params, storyId));
+            if (batch.size() >= batchSize) {
+                flushBatch();
+            } else if (batch.size() == 1) {
+                lingerFlush = timer.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return storyId;
+    }
+
+    /**
+     * Sends the stories queued so far without waiting for the batch to fill up.
+     */
+    public synchronized void flush() {
+        if (!batch.isEmpty()) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Writes the remaining stories and waits until all the stories are created or failed.
+     */
+    public void close() {
+        flush();
+        timer.shutdownNow();
+        writers.shutdown();
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for the remaining stories to be created...");
+            }
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while waiting for the stories to be created.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushBatch() {
+        List<PendingStory> flushed = batch;
+        batch = new ArrayList<>();
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        writers.submit(() -> write(flushed));
+    }
+
+    private void write(List<PendingStory> stories) {
+        List<Story> created;
+        try {
+            CreateStoriesParams params = new CreateStoriesParams();
+            params.stories = new ArrayList<>();
+            for (PendingStory story : stories) {
+                params.stories.add(story.params);
+            }
+            created = limiter.call(() -> storiesService.createMultipleStories(params));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to create a batch of " + stories.size() + " stories, creating them one by one", e);
+            stories.forEach(this::writeOne);
+            return;
+        }
+        complete(stories, created);
+    }
+
+    private void writeOne(PendingStory story) {
+        try {
+            Long existing = retrier.call(() -> find(story.params));
+            story.id.complete(existing != null ? existing : retrier.call(() -> limiter.call(() -> storiesService.createStory(story.params)).id, () -> find(story.params)));
+        } catch (IOException | RuntimeException e) {
+            story.id.completeExceptionally(e);
+        }
+    }
+
+    private Long find(CreateStoryParams params) throws IOException {
+        if (params.external_id == null) {
+            return null;
+        }
+        SearchStoriesParams search = new SearchStoriesParams();
+        search.external_id = params.external_id;
+        List<StorySlim> stories = limiter.call(() -> storiesService.searchStories(search));
+        return stories.isEmpty() ? null : stories.get(0).id;
+    }
+
+    /**
+     * Matches the created stories with the queued ones by external id, or by position for stories without one.
+     */
+    private static void complete(List<PendingStory> stories, List<Story> created) {
+        Map<String, Long> idsByExternalId = new HashMap<>();
+        for (Story story : created) {
+            if (story.external_id != null) {
+                idsByExternalId.put(story.external_id, story.id);
+            }
+        }
+        for (int i = 0; i < stories.size(); i++) {
+            PendingStory story = stories.get(i);
+            Long id = story.params.external_id != null ? idsByExternalId.get(story.params.external_id)
+                    : created.size() == stories.size() ? created.get(i).id : null;
+            if (id != null) {
+                story.id.complete(id);
+            } else {
+                story.id.completeExceptionally(new IOException("Story missing from the bulk creation response: " + story.params.name));
+            }
+        }
+    }
+
+    private static class PendingStory {
+        private final CreateStoryParams params;
+        private final CompletableFuture<Long> id;
+
+        PendingStory(CreateStoryParams params, CompletableFuture<Long> id) {
+            this.params = params;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.dataiku.clubhouse;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.clubhouse4j.api.v3beta.GsonHelper;
+import io.clubhouse4j.api.v3beta.SearchStoriesParams;
+import io.clubhouse4j.api.v3beta.StoriesService;
+import io.clubhouse4j.api.v3beta.StorySlim;
+
+/**
+ * Searches stories by windows of a date field, concurrently, and streams the stories of each window to a consumer
+ * instead of loading them all in one list.
+ * <p>
+ * Clubhouse caps the results of a search: a window reaching the cap is split in two halves, searched again, until
+ * its stories fit in one response. Windows are searched on a pool sized by the Clubhouse limiter, and the consumer is
+ * called from its threads, one window at a time per thread. Windows are split down to one millisecond: only a
+ * millisecond that still reaches the cap fails the search.
+ */
+public class StorySearch {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.search");
+
+    // Maximum number of stories returned by one search.
+    static final int MAX_RESULTS = 1000;
+    // Before the oldest migrated issue or card: no story is dated earlier.
+    static final Instant ORIGIN = Instant.parse("2008-01-01T00:00:00Z");
+    // Margin for the clock of Clubhouse being ahead of ours, when searching up to now.
+    static final Duration CLOCK_SKEW = Duration.ofMinutes(5);
+    // Shortest initial window. Truncated windows are split down to one millisecond, since bulk updates give
+    // thousands of stories the same updated_at second.
+    private static final Duration MIN_INITIAL_WINDOW = Duration.ofSeconds(1);
+
+    public enum DateField {
+        COMPLETED_AT,
+        UPDATED_AT
+    }
+
+    private final StoriesService storiesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier retrier;
+
+    public StorySearch(StoriesService storiesService, ClubhouseLimiter limiter, RequestRetrier retrier) {
+        this.storiesService = storiesService;
+        this.limiter = limiter;
+        this.retrier = retrier;
+    }
+
+    /**
+     * Searches the stories matching the given parameters whose date field is between start and end, both included,
+     * and passes the stories of each window to the consumer. Returns the number of stories found.
+     *
+     * @throws IOException if the search of some windows failed or was truncated, once all the other windows are consumed
+     */
+    public long search(SearchStoriesParams params, DateField field, Instant start, Instant end, Consumer<List<StorySlim>> consumer) throws IOException {
+        ExecutorService executor = limiter.newExecutor("story-search-%d");
+        Search search = new Search(executor, params, field, consumer);
+        try {
+            // Start with as many windows as requests allowed in flight.
+            long range = end.toEpochMilli() - start.toEpochMilli();
+            int windows = (int) Math.max(1, Math.min(limiter.getLimit(), range / MIN_INITIAL_WINDOW.toMillis()));
+            long step = range / windows;
+            // Holds the search open until all the initial windows are submitted.
+            search.pending.incrementAndGet();
+            for (int i = 0; i < windows; i++) {
+                Instant windowStart = start.plusMillis(i * step);
+                search.submit(windowStart, i == windows - 1 ? end : windowStart.plusMillis(step - 1));
+            }
+            search.windowDone();
+            search.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching stories", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (search.failedWindows.get() > 0) {
+            throw new IOException("Failed to search or process " + search.failedWindows.get() + " windows of stories, " + search.found.get() + " stories found");
+        }
+        return search.found.get();
+    }
+
+    private class Search {
+        private final ExecutorService executor;
+        private final SearchStoriesParams params;
+        private final DateField field;
+        private final Consumer<List<StorySlim>> consumer;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger failedWindows = new AtomicInteger();
+        private final AtomicLong found = new AtomicLong();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Search(ExecutorService executor, SearchStoriesParams params, DateField field, Consumer<List<StorySlim>> consumer) {
+            this.executor = executor;
+            this.params = params;
+            this.field = field;
+            this.consumer = consumer;
+        }
+
+        void submit(Instant start, Instant end) {
+            pending.incrementAndGet();
+            executor.submit(() -> {
+                try {
+                    searchWindow(start, end);
+                } finally {
+                    windowDone();
+                }
+            });
+        }
+
+        void windowDone() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        private void searchWindow(Instant start, Instant end) {
+            List<StorySlim> stories;
+            try {
+                SearchStoriesParams windowParams = window(start, end);
+                stories = retrier.call(() -> limiter.call(() -> storiesService.searchStories(windowParams)));
+            } catch (IOException | RuntimeException e) {
+                failedWindows.incrementAndGet();
+                logger.log(Level.WARNING, "Failed to search the stories from " + start + " to " + end, e);
+                return;
+            }
+            long length = end.toEpochMilli() - start.toEpochMilli();
+            if (stories.size() >= MAX_RESULTS && length > 0) {
+                // Truncated: search each half again, both bounds being included.
+                Instant middle = start.plusMillis(length / 2);
+                logger.fine("Splitting the story search from " + start + " to " + end + " at " + middle);
+                submit(start, middle);
+                submit(middle.plusMillis(1), end);
+                return;
+            }
+            if (stories.size() >= MAX_RESULTS) {
+                // The stories found are still consumed, but the search fails: its callers must not take it as complete.
+                failedWindows.incrementAndGet();
+                logger.warning("More than " + MAX_RESULTS + " stories from " + start + " to " + end + ": some of them are skipped.");
+            }
+            found.addAndGet(stories.size());
+            if (!stories.isEmpty()) {
+                try {
+                    consumer.accept(stories);
+                } catch (RuntimeException e) {
+                    failedWindows.incrementAndGet();
+                    logger.log(Level.WARNING, "Failed to process the stories from " + start + " to " + end, e);
+                }
+            }
+        }
+
+        private SearchStoriesParams window(Instant start, Instant end) {
+            SearchStoriesParams windowParams = GsonHelper.GSON.fromJson(GsonHelper.GSON.toJson(params), SearchStoriesParams.class);
+            if (field == DateField.COMPLETED_AT) {
+                windowParams.completed_at_start = start;
+                windowParams.completed_at_end = end;
+            } else {
+                windowParams.updated_at_start = start;
+                windowParams.updated_at_end = end;
+            }
+            return windowParams;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.dataiku.clubhouse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.GitHubRequest;
+import org.eclipse.egit.github.core.client.GitHubResponse;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Github client sending its requests through a {@link GithubRequestScheduler} shared by all the threads.
+ * <p>
+ * When a {@link GithubResponseCache} is set, GET requests are sent as conditional requests and answered from the cache
+ * on {@code 304 Not Modified}.
+ */
+public class ThrottledGitHubClient extends GitHubClient {
+
+    private static final String HEADER_REMAINING = "X-RateLimit-Remaining";
+    private static final String HEADER_RESET = "X-RateLimit-Reset";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_LINK = "Link";
+
+    private final GithubRequestScheduler scheduler;
+    private GithubResponseCache responseCache;
+
+    public ThrottledGitHubClient(GithubRequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public GithubRequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setResponseCache(GithubResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    @Override
+    public GitHubResponse get(GitHubRequest request) throws IOException {
+        if (responseCache == null) {
+            return super.get(request);
+        }
+        String uri = request.generateUri();
+        GithubResponseCache.Entry cached = responseCache.get(uri);
+        HttpURLConnection httpRequest = createGet(uri);
+        if (request.getResponseContentType() != null) {
+            httpRequest.setRequestProperty("Accept", request.getResponseContentType());
+        }
+        if (cached != null && cached.etag != null) {
+            httpRequest.setRequestProperty("If-None-Match", cached.etag);
+        } else if (cached != null && cached.lastModified != null) {
+            httpRequest.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+        int code = httpRequest.getResponseCode();
+        updateRateLimits(httpRequest);
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            return new CachedResponse(httpRequest, parseBody(request, cached.body), cached.link);
+        }
+        if (isOk(code)) {
+            String body;
+            try (InputStream stream = getStream(httpRequest)) {
+                body = new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8);
+            }
+            GithubResponseCache.Entry entry = new GithubResponseCache.Entry();
+            entry.uri = uri;
+            entry.etag = httpRequest.getHeaderField(HEADER_ETAG);
+            entry.lastModified = httpRequest.getHeaderField(HEADER_LAST_MODIFIED);
+            entry.link = httpRequest.getHeaderField(HEADER_LINK);
+            entry.body = body;
+            if (entry.etag != null || entry.lastModified != null) {
+                responseCache.put(entry);
+            }
+            return new GitHubResponse(httpRequest, parseBody(request, body));
+        }
+        if (isEmpty(code)) {
+            return new GitHubResponse(httpRequest, null);
+        }
+        throw createException(getStream(httpRequest), code, httpRequest.getResponseMessage());
+    }
+
+    private Object parseBody(GitHubRequest request, String body) throws IOException {
+        return getBody(request, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected HttpURLConnection createConnection(String uri, String method) throws IOException {
+        try {
+            scheduler.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Github rate limit");
+        }
+        return super.createConnection(uri, method);
+    }
+
+    @Override
+    protected GitHubClient updateRateLimits(HttpURLConnection request) {
+        super.updateRateLimits(request);
+        Integer remaining = parseHeader(request, HEADER_REMAINING);
+        Integer reset = parseHeader(request, HEADER_RESET);
+        if (remaining != null && reset != null) {
+            scheduler.update(remaining, reset);
+        }
+        Integer retryAfter = parseHeader(request, HEADER_RETRY_AFTER);
+        if (retryAfter != null) {
+            scheduler.pause(retryAfter * 1000L);
+        }
+        return this;
+    }
+
+    private static Integer parseHeader(HttpURLConnection request, String name) {
+        String value = request.getHeaderField(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Response served from the cache: a 304 answer may not repeat the pagination links of the cached response.
+     */
+    private static class CachedResponse extends GitHubResponse {
+        private final String link;
+
+        CachedResponse(HttpURLConnection response, Object body, String link) {
+            super(response, body);
+            this.link = link;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = super.getHeader(name);
+            if (value == null && link != null && HEADER_LINK.equalsIgnoreCase(name)) {
+                return link;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.dataiku.clubhouse;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.trello4j.Trello;
+import org.trello4j.model.Action;
+
+/**
+ * Streams the actions of a Trello card or board page by page, newest first, using {@code before=} cursors. Trello
+ * returns at most 1000 actions per request, so a single request silently misses the oldest part of a long history.
+ */
+public class TrelloActionPager {
+
+    static final int PAGE_SIZE = 1000;
+
+    private TrelloActionPager() {
+    }
+
+    public static void forEachCardAction(Trello trelloClient, RequestRetrier retrier, String cardId, String filter, Consumer<Action> consumer) {
+        forEachAction(params -> retrier.get(() -> trelloClient.getActionsByCard(cardId, params)), filter, consumer);
+    }
+
+    public static void forEachBoardAction(Trello trelloClient, RequestRetrier retrier, String boardId, String filter, Consumer<Action> consumer) {
+        forEachAction(params -> retrier.get(() -> trelloClient.getActionsByBoard(boardId, params)), filter, consumer);
+    }
+
+    private static void forEachAction(Function<Map<String, Object>, List<Action>> fetchPage, String filter, Consumer<Action> consumer) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("filter", filter);
+        params.put("limit", PAGE_SIZE);
+        while (true) {
+            List<Action> page = fetchPage.apply(params);
+            if (page == null || page.isEmpty()) {
+                return;
+            }
+            page.forEach(consumer);
+            if (page.size() < PAGE_SIZE) {
+                return;
+            }
+            // The next page starts before the oldest action of this one.
+            params.put("before", page.get(page.size() - 1).getId());
+        }
+    }
+}
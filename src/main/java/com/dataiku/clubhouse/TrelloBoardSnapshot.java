@@ -0,0 +1,82 @@
+package com.dataiku.clubhouse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.trello4j.Trello;
+import org.trello4j.model.Board;
+import org.trello4j.model.Card;
+import org.trello4j.model.Checklist;
+
+/**
+ * Cards of a Trello board with their checklists and history, fetched with a few board-level requests and joined by
+ * card id, instead of several requests per card.
+ */
+public class TrelloBoardSnapshot {
+
+    private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.trello.board");
+
+    // Actions defining the creator of a card, and its comments.
+    private static final String BOARD_ACTIONS_FILTER = "createCard,copyCard,convertToCardFromCheckItem,emailCard,moveCardToBoard,commentCard";
+
+    private final Map<String, org.trello4j.model.List> listsById = new HashMap<>();
+    private final List<Card> cards = new ArrayList<>();
+    private final Map<String, List<Checklist>> checklistsByCard = new ConcurrentHashMap<>();
+    private final Map<String, TrelloCardHistory> historyByCard = new ConcurrentHashMap<>();
+
+    public static TrelloBoardSnapshot load(Trello trelloClient, RequestRetrier retrier, Board board, Collection<String> ignoredLists) {
+        TrelloBoardSnapshot snapshot = new TrelloBoardSnapshot();
+        for (org.trello4j.model.List list : retrier.get(() -> trelloClient.getListByBoard(board.getId()))) {
+            if (ignoredLists == null || !ignoredLists.contains(list.getName())) {
+                snapshot.listsById.put(list.getId(), list);
+            } else {
+                logger.fine("Skipping ignored list: " + list.getName());
+            }
+        }
+        for (Card card : retrier.get(() -> trelloClient.getCardsByBoard(board.getId()))) {
+            if (snapshot.listsById.containsKey(card.getIdList())) {
+                snapshot.cards.add(card);
+            }
+        }
+        if (snapshot.cards.isEmpty()) {
+            return snapshot;
+        }
+        for (Checklist checklist : retrier.get(() -> trelloClient.getChecklistByBoard(board.getId()))) {
+            snapshot.checklistsByCard.computeIfAbsent(checklist.getIdCard(), id -> new ArrayList<>(1)).add(checklist);
+        }
+        snapshot.loadActions(trelloClient, retrier, board);
+        logger.info("Loaded " + snapshot.cards.size() + " cards from board " + board.getName());
+        return snapshot;
+    }
+
+    private void loadActions(Trello trelloClient, RequestRetrier retrier, Board board) {
+        TrelloActionPager.forEachBoardAction(trelloClient, retrier, board.getId(), BOARD_ACTIONS_FILTER, action -> {
+            if (action.getData() != null && action.getData().getCard() != null) {
+                historyByCard.computeIfAbsent(action.getData().getCard().getId(), id -> new TrelloCardHistory()).accept(action);
+            }
+        });
+    }
+
+    public Collection<org.trello4j.model.List> getLists() {
+        return listsById.values();
+    }
+
+    public List<Card> getCards() {
+        return cards;
+    }
+
+    /**
+     * Removes and returns the data of the given card, so that it can be released once the card is migrated.
+     */
+    public TrelloCardData takeCardData(Card card) {
+        TrelloCardHistory history = historyByCard.remove(card.getId());
+        List<Checklist> checklists = checklistsByCard.remove(card.getId());
+        boolean withAttachments = card.getBadges() == null || card.getBadges().getAttachments() > 0;
+        return new TrelloCardData(history == null ? new TrelloCardHistory() : history, checklists, withAttachments);
+    }
+}
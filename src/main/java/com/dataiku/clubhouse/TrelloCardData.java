@@ -0,0 +1,86 @@
+package com.dataiku.clubhouse;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import org.trello4j.Trello;
+import org.trello4j.model.Card;
+import org.trello4j.model.Checklist;
+
+/**
+ * Trello data needed to migrate a card besides the card itself: its history, checklists, and whether it has
+ * attachments. It is either extracted from a {@link TrelloBoardSnapshot} or loaded for a single card.
+ */
+public class TrelloCardData {
+
+    private final TrelloCardHistory history;
+    private final List<Checklist> checklists;
+    private final boolean withAttachments;
+
+    TrelloCardData(TrelloCardHistory history, List<Checklist> checklists, boolean withAttachments) {
+        this.history = history;
+        this.checklists = checklists;
+        this.withAttachments = withAttachments;
+    }
+
+    public static TrelloCardData load(Trello trelloClient, RequestRetrier retrier, Card card) {
+        TrelloCardHistory history = new TrelloCardHistory();
+        TrelloActionPager.forEachCardAction(trelloClient, retrier, card.getId(), "all", history::accept);
+        return new TrelloCardData(history, retrier.get(() -> trelloClient.getChecklistByCard(card.getId())), true);
+    }
+
+    /**
+     * Creation date of the card: its first action, or the timestamp encoded in its id when the creation is not part
+     * of the history.
+     */
+    public Instant getFirstTimestamp(Card card) {
+        Instant idTimestamp = getIdTimestamp(card);
+        Instant firstAction = history.getFirstTimestamp();
+        if (idTimestamp == null || (firstAction != null && firstAction.isBefore(idTimestamp))) {
+            return firstAction;
+        }
+        return idTimestamp;
+    }
+
+    public Instant getLastTimestamp(Card card) {
+        Instant lastAction = history.getLastTimestamp();
+        Instant lastActivity = card.getDateLastActivity() == null ? null : Instant.ofEpochMilli(card.getDateLastActivity().getTime());
+        if (lastActivity == null || (lastAction != null && lastAction.isAfter(lastActivity))) {
+            return lastAction;
+        }
+        return lastActivity;
+    }
+
+    public org.trello4j.model.Member getReporter() {
+        return history.getReporter();
+    }
+
+    public List<TrelloCardHistory.Comment> getComments() {
+        return history.getComments();
+    }
+
+    public List<Checklist> getChecklists() {
+        return checklists == null ? Collections.emptyList() : checklists;
+    }
+
+    /**
+     * False when the card is known to have no attachment, which saves the attachments and cover requests.
+     */
+    public boolean hasAttachments() {
+        return withAttachments;
+    }
+
+    private static Instant getIdTimestamp(Card card) {
+        // The first 8 hexadecimal digits of a Trello id are the creation timestamp in seconds.
+        String id = card.getId();
+        if (id == null || id.length() < 8) {
+            return null;
+        }
+        try {
+            return Instant.ofEpochSecond(Long.parseLong(id.substring(0, 8), 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.dataiku.clubhouse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.trello4j.model.Action;
+import org.trello4j.model.Member;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * What the migration keeps from the history of a Trello card: its first and last timestamps, its reporter and its
+ * comments. Actions are accumulated one by one in any order, so the raw actions never need to be held in memory.
+ * <p>
+ * The reporter is the creator of the card. Only when the history has no creation action, e.g. for a card moved in from
+ * another board, is it the author of the earliest action.
+ */
+public class TrelloCardHistory {
+
+    private static final Set<String> CREATION_TYPES = ImmutableSet.of("createcard", "copycard", "converttocardfromcheckitem");
+
+    private Instant firstTimestamp;
+    private Member firstMember;
+    private Instant creationTimestamp;
+    private Member creator;
+    private Instant lastTimestamp;
+    private final List<Comment> comments = new ArrayList<>();
+
+    public synchronized void accept(Action action) {
+        if (action.getDate() == null) {
+            return;
+        }
+        Instant timestamp = Instant.ofEpochMilli(action.getDate().getTime());
+        if (firstTimestamp == null || timestamp.isBefore(firstTimestamp)) {
+            firstTimestamp = timestamp;
+            firstMember = action.getMemberCreator();
+        }
+        if (action.getType() != null && CREATION_TYPES.contains(action.getType().toLowerCase(Locale.ROOT))
+                && (creationTimestamp == null || timestamp.isBefore(creationTimestamp))) {
+            creationTimestamp = timestamp;
+            creator = action.getMemberCreator();
+        }
+        if (lastTimestamp == null || timestamp.isAfter(lastTimestamp)) {
+            lastTimestamp = timestamp;
+        }
+        if ("commentCard".equalsIgnoreCase(action.getType()) && action.getData() != null) {
+            comments.add(new Comment(timestamp, action.getMemberCreator(), action.getData().getText()));
+        }
+    }
+
+    public synchronized Instant getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public synchronized Member getReporter() {
+        return creationTimestamp != null ? creator : firstMember;
+    }
+
+    public synchronized Instant getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Returns the comments, oldest first.
+     */
+    public synchronized List<Comment> getComments() {
+        List<Comment> result = new ArrayList<>(comments);
+        result.sort(Comparator.comparing(Comment::getDate));
+        return result;
+    }
+
+    public static class Comment {
+        private final Instant date;
+        private final Member author;
+        private final String text;
+
+        Comment(Instant date, Member author, String text) {
+            this.date = date;
+            this.author = author;
+            this.text = text;
+        }
+
+        public Instant getDate() {
+            return date;
+        }
+
+        public Member getAuthor() {
+            return author;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
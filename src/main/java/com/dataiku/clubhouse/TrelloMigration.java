@@ -1,21 +1,19 @@
 package com.dataiku.clubhouse;
 
-import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_EPICS;
-import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_LABELS;
-import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES;
-
+import java.io.Closeable;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -24,27 +22,40 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.trello4j.Trello;
-import org.trello4j.model.Action;
 import org.trello4j.model.Board;
 import org.trello4j.model.Card;
 import org.trello4j.model.Checklist;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import io.clubhouse4j.api.v3beta.*;
 
 @SuppressWarnings({"UnusedReturnValue", "unused"})
-public class TrelloMigration {
+public class TrelloMigration implements Closeable {
 
     private static final Logger logger = Logger.getLogger("com.dataiku.clubhouse.migration.trello");
+    private static final int BOARD_LOADING_THREADS = 4;
+    private static final int CARDS_BACKLOG_SIZE = 500;
+    // Workers migrating the cards: they mostly wait for Trello, so they outnumber the Clubhouse requests in flight.
+    private static final int DEFAULT_THREADS = 32;
+    private static final Duration SHUTDOWN_GRACE = Duration.ofMinutes(2);
+    private static final int STORY_BATCH_SIZE = 25;
+    private static final long STORY_BATCH_LINGER_MILLIS = 500;
     private static final List<String> BUGS_LABELS = Arrays.asList("bug", "type:bug", "type: bug");
     private static final List<String> REVIEW_LABELS = Arrays.asList("verified", "__fixed", "fixed", "status: fixed (to verify)", "verified - keeping open because needs test", "[ qa ] - to verify", "fixed (to verify)", "to verify (old)", "Done (to verify)");
 
     private final StoriesService storiesService;
+    private final ClubhouseLimiter limiter;
+    private final RequestRetrier clubhouseRetrier = new RequestRetrier("Clubhouse");
+    private final RequestRetrier trelloRetrier = new RequestRetrier("Trello");
     private final EpicsService epicsService;
     private final LinkedFilesService linkedFileService;
+    private final LinkedFileRegistry linkedFileRegistry;
     private final Project project;
-    private final TrelloMigrationParams migrationParams;
-    private final List<EpicSlim> epicList;
+    private final TrelloMigrationPlan migrationPlan;
+    private final EpicRegistry epicRegistry;
+    private final ExternalIdIndex storyIndex;
+    private final LabelRegistry labelRegistry;
     private final long completedStateId;
     private final long reviewStateId;
     private final Map<String, WorkflowState> workflowStates;
@@ -54,23 +65,54 @@ public class TrelloMigration {
 
     private final TrelloUserMapping userMapping;
     private boolean dryRun;
+    private volatile StoryBatchWriter storyWriter;
+    private MigrationJournal journal = MigrationJournal.disabled();
+    private volatile boolean stopping;
 
     public TrelloMigration(ClubhouseClient clubhouseClient, String clubhouseProjectName, Trello trelloClient, String trelloOrganization, TrelloMigrationParams migrationParams) throws IOException {
         this.storiesService = new StoriesService(clubhouseClient);
+        this.limiter = ClubhouseLimiter.of(clubhouseClient);
         this.epicsService = new EpicsService(clubhouseClient);
         this.linkedFileService = new LinkedFilesService(clubhouseClient);
+        this.linkedFileRegistry = new LinkedFileRegistry(linkedFileService, limiter, clubhouseRetrier);
         this.project = MigrationHelpers.getProject(new ProjectsService(clubhouseClient), clubhouseProjectName);
 
         this.trelloClient = trelloClient;
         this.trelloOrganization = trelloOrganization;
-        this.migrationParams = migrationParams;
 
         this.userMapping = new TrelloUserMapping(clubhouseClient, trelloClient, migrationParams.usersMapping);
 
         this.workflowStates = MigrationHelpers.getWorkflowStatesMap(new TeamsService(clubhouseClient), project);
         this.completedStateId = workflowStates.get("Completed").id;
         this.reviewStateId = workflowStates.get("Ready for Review").id;
-        this.epicList = epicsService.listEpics();
+        this.migrationPlan = TrelloMigrationPlan.compile(migrationParams, workflowStates);
+        this.epicRegistry = MigrationHelpers.getEpicRegistry(epicsService, limiter, clubhouseRetrier);
+        this.storyIndex = ExternalIdIndex.load(storiesService, limiter, clubhouseRetrier, project);
+        this.labelRegistry = LabelRegistry.load(new LabelsService(clubhouseClient), limiter, clubhouseRetrier);
+    }
+
+    /**
+     * Offline migration, which can only build the stories of cards in dry run mode.
+     */
+    @VisibleForTesting
+    TrelloMigration(Project project, TrelloMigrationPlan migrationPlan, Map<String, WorkflowState> workflowStates, TrelloUserMapping userMapping, LabelRegistry labelRegistry) {
+        this.storiesService = null;
+        this.limiter = new ClubhouseLimiter();
+        this.epicsService = null;
+        this.linkedFileService = null;
+        this.linkedFileRegistry = null;
+        this.project = project;
+        this.trelloClient = null;
+        this.trelloOrganization = null;
+        this.userMapping = userMapping;
+        this.workflowStates = workflowStates;
+        this.completedStateId = workflowStates.get("Completed").id;
+        this.reviewStateId = workflowStates.get("Ready for Review").id;
+        this.migrationPlan = migrationPlan;
+        this.epicRegistry = null;
+        this.storyIndex = null;
+        this.labelRegistry = labelRegistry;
+        this.dryRun = true;
     }
 
     public void setDryRun(boolean dryRun) {
@@ -81,62 +123,174 @@ public class TrelloMigration {
         return dryRun;
     }
 
+    /**
+     * Records the migration in the given journal, and resumes the migration it recorded: its migrated cards are
+     * skipped, its unfinished cards are migrated again with their boards, and the linked files it created are reused.
+     * The journal is closed at the end of the run, or on JVM shutdown after the cards in progress have had a chance to
+     * finish.
+     */
+    public void setJournal(MigrationJournal journal) {
+        this.journal = journal;
+        journal.getStoryIds().forEach(storyIndex::complete);
+        linkedFileRegistry.setJournal(journal);
+        epicRegistry.setJournal(journal);
+        labelRegistry.setJournal(journal);
+        journal.closeOnShutdown(this::requestStop, SHUTDOWN_GRACE);
+    }
+
+    /**
+     * Stops taking new cards: the run returns once the cards in progress are migrated.
+     */
+    public void requestStop() {
+        stopping = true;
+    }
+
+    /**
+     * Migrates the cards with the default number of workers. Workers mostly wait for Trello: only their Clubhouse
+     * requests are bounded by the Clubhouse limiter.
+     */
+    public void run() {
+        run(DEFAULT_THREADS);
+    }
+
     public void run(int threads) {
+        run(new BoundedExecutor(threads, CARDS_BACKLOG_SIZE));
+    }
+
+    private void run(BoundedExecutor executor) {
         logger.info("Starting migration...");
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
-        scheduleMigrationTasks(executor);
-        executor.shutdown();
-        logger.info("Waiting for completion of pending tasks...");
+        // Whatever fails while scheduling the cards, the submitted cards are migrated, the pending stories written
+        // and the journal closed.
         try {
-            executor.awaitTermination(24, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            logger.warning("Interupted while waiting for migration to finish.");
-            Thread.currentThread().interrupt();
+            storyWriter = new StoryBatchWriter(storiesService, limiter, clubhouseRetrier, STORY_BATCH_SIZE, STORY_BATCH_LINGER_MILLIS);
+            scheduleMigrationTasks(executor);
+        } finally {
+            logger.info("Waiting for completion of pending tasks...");
+            executor.shutdownAndAwait();
+            if (storyWriter != null) {
+                storyWriter.close();
+                storyWriter = null;
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close the migration journal", e);
+            }
         }
         logger.info("Done.");
     }
 
-    private void scheduleMigrationTasks(ExecutorService executor) { // NOSONAR
-        for (Board board : trelloClient.getBoardsByOrganization(trelloOrganization)) {
-            if (!board.isClosed() && getBoardMigrationParams(board.getName()).migrate) {
-                for (org.trello4j.model.List list : trelloClient.getListByBoard(board.getId())) {
-                    if (!migrationParams.ignoredLists.contains(list.getName())) {
-                        for (Card card : trelloClient.getCardsByList(list.getId())) {
-                            executor.submit(new MigrateTrelloRunnable(board, list, card));
-                        }
-                    } else {
-                        logger.fine("Skipping ignored list: " + list.getName());
-                    }
+    /**
+     * Waits for the pending linked file creations and releases their pool: cards can be migrated until then, even
+     * after a run.
+     */
+    @Override
+    public void close() {
+        if (linkedFileRegistry != null) {
+            linkedFileRegistry.close();
+        }
+    }
+
+    private void scheduleMigrationTasks(BoundedExecutor executor) {
+        // Boards are loaded in parallel, and their cards are submitted as soon as each board is loaded.
+        ExecutorService boardLoader = Executors.newFixedThreadPool(BOARD_LOADING_THREADS);
+        try {
+            for (Board board : trelloRetrier.get(() -> trelloClient.getBoardsByOrganization(trelloOrganization))) {
+                if (!board.isClosed() && migrationPlan.getBoard(board.getName()).isMigrated()) {
+                    boardLoader.submit(() -> scheduleBoardMigrationTasks(executor, board));
+                } else {
+                    logger.info("Skipping closed or ignored board: " + board.getName());
                 }
-            } else {
-                logger.info("Skipping closed or ignored board: " + board.getName());
+            }
+        } finally {
+            // The boards already submitted are still scheduled before the workers are shut down.
+            boardLoader.shutdown();
+            try {
+                boardLoader.awaitTermination(24, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                logger.warning("Interupted while loading the boards to migrate.");
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    private TrelloBoardMigrationParams getBoardMigrationParams(String boardName) {
-        Optional<TrelloBoardMigrationParams> boardParams = Optional.empty();
-        if (migrationParams.boards != null) {
-            boardParams = migrationParams.boards.stream().filter(itBoardParams -> boardName.equalsIgnoreCase(itBoardParams.name)).findFirst();
+    private void scheduleBoardMigrationTasks(BoundedExecutor executor, Board board) {
+        try {
+            TrelloBoardSnapshot snapshot = TrelloBoardSnapshot.load(trelloClient, trelloRetrier, board, migrationPlan.getIgnoredLists());
+            Map<String, TrelloMigrationPlan.ListPlan> listPlans = new HashMap<>();
+            for (org.trello4j.model.List list : snapshot.getLists()) {
+                try {
+                    listPlans.put(list.getId(), migrationPlan.getList(board, list));
+                } catch (IllegalArgumentException e) {
+                    logger.severe("Skipping the cards of list " + list.getName() + ": " + e.getMessage());
+                }
+            }
+            provisionLabels(snapshot, listPlans.values());
+            for (Card card : snapshot.getCards()) {
+                if (stopping) {
+                    logger.warning("Stop requested: skipping the remaining cards of board " + board.getName());
+                    return;
+                }
+                TrelloMigrationPlan.ListPlan listPlan = listPlans.get(card.getIdList());
+                if (listPlan != null) {
+                    executor.submit(new MigrateTrelloRunnable(listPlan, card, snapshot.takeCardData(card)));
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warning("Interupted while scheduling the cards of board " + board.getName());
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to load board " + board.getName(), e);
+        }
+    }
+
+    private void provisionLabels(TrelloBoardSnapshot snapshot, Collection<TrelloMigrationPlan.ListPlan> listPlans) {
+        if (dryRun) {
+            return;
+        }
+        Map<String, String> colorsByLabel = new HashMap<>();
+        for (TrelloMigrationPlan.ListPlan listPlan : listPlans) {
+            if (listPlan.getLabel() != null) {
+                colorsByLabel.put(listPlan.getLabel(), null);
+            }
+        }
+        for (Card card : snapshot.getCards()) {
+            if (card.getLabels() != null) {
+                for (Card.Label label : card.getLabels()) {
+                    if (!isBugLabel(label)) {
+                        colorsByLabel.putIfAbsent(mapLabel(label.getName()), getColor(label.getColor()));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, String> label : colorsByLabel.entrySet()) {
+            try {
+                labelRegistry.provision(label.getKey(), label.getValue());
+            } catch (IOException e) {
+                // Stories still carry the labels that could not be provisioned.
+                logger.log(Level.WARNING, "Failed to provision label " + label.getKey(), e);
+            }
         }
-        return boardParams.orElse(new TrelloBoardMigrationParams(boardName, false, MIGRATE_LISTS_AS_LABELS));
     }
 
     public void migrateTrelloCard(String cardId) throws IOException {
-        Card card = trelloClient.getCard(cardId);
-        Board board = trelloClient.getBoard(card.getIdBoard());
-        org.trello4j.model.List list = trelloClient.getList(card.getIdList());
-        migrateTrelloCard(board, list, card);
+        Card card = trelloRetrier.get(() -> trelloClient.getCard(cardId));
+        Board board = trelloRetrier.get(() -> trelloClient.getBoard(card.getIdBoard()));
+        org.trello4j.model.List list = trelloRetrier.get(() -> trelloClient.getList(card.getIdList()));
+        migrateTrelloCard(migrationPlan.getList(board, list), card, TrelloCardData.load(trelloClient, trelloRetrier, card));
+    }
+
+    private void migrateTrelloCard(TrelloMigrationPlan.ListPlan listPlan, Card card, TrelloCardData cardData) throws IOException {
+        CreateStoryParams createStoryParams = toStoryParams(listPlan, card, cardData);
+        if (!dryRun) {
+            limiter.call(() -> storiesService.createStory(createStoryParams));
+        }
     }
 
-    private void migrateTrelloCard(Board board, org.trello4j.model.List list, Card card) throws IOException { // NOSONAR
-        Map<String, Object> actionsParams = new HashMap<>();
-        actionsParams.put("filter", "all");
-        actionsParams.put("limit", 1000);
-        List<Action> actions = trelloClient.getActionsByCard(card.getId(), actionsParams);
-        actions.sort(Comparator.comparing(Action::getDate));
-        Instant firstTimestamp = actions.isEmpty() ? null : toInstant(actions.get(0).getDate());
-        Instant lastTimestamp = actions.isEmpty() ? null : toInstant(actions.get(actions.size() - 1).getDate());
+    @VisibleForTesting
+    CreateStoryParams toStoryParams(TrelloMigrationPlan.ListPlan listPlan, Card card, TrelloCardData cardData) throws IOException { // NOSONAR
+        Instant firstTimestamp = cardData.getFirstTimestamp(card);
+        Instant lastTimestamp = cardData.getLastTimestamp(card);
 
         List<String> footerNotes = new ArrayList<>();
         footerNotes.add(MessageFormat.format("* This card has been imported from Trello card [#{0}]({1})", card.getId(), card.getUrl()));
@@ -149,13 +303,13 @@ public class TrelloMigration {
         createStoryParams.updated_at = lastTimestamp;
 
         // State / workflow
-        createStoryParams.workflow_state_id = migrateState(card, board, list);
+        createStoryParams.workflow_state_id = migrateState(card, listPlan);
         if (createStoryParams.workflow_state_id != null && createStoryParams.workflow_state_id == completedStateId) {
             createStoryParams.completed_at_override = lastTimestamp;
         }
 
         // Owner / Assignee
-        org.trello4j.model.Member trelloReporter = actions.isEmpty() ? null : actions.get(0).getMemberCreator();
+        org.trello4j.model.Member trelloReporter = cardData.getReporter();
         Member reporter = userMapping.getClubhouseMember(trelloReporter);
         if (reporter.id != null) {
             createStoryParams.requested_by_id = reporter.id;
@@ -171,51 +325,36 @@ public class TrelloMigration {
         }
 
         // Tasks
-        createStoryParams.tasks = migrateTasks(card);
+        createStoryParams.tasks = migrateTasks(cardData);
 
         // Labels
-        createStoryParams.labels = migrateLabels(card, board, list);
+        createStoryParams.labels = migrateLabels(card, listPlan);
 
         // Attachments
-        createStoryParams.linked_file_ids = migrateAttachments(card);
+        createStoryParams.linked_file_ids = cardData.hasAttachments() ? migrateAttachments(card) : new ArrayList<>();
 
         // Epic
-        createStoryParams.epic_id = migrateEpic(card, board, list);
+        createStoryParams.epic_id = migrateEpic(card, listPlan);
 
         // Comments
-        createStoryParams.comments = migrateComments(actions);
+        createStoryParams.comments = migrateComments(cardData.getComments());
 
         // External reference
         createStoryParams.external_tickets = Collections.singletonList(new CreateExternalTicketParams("trello-" + card.getId(), card.getUrl()));
         createStoryParams.external_id = card.getUrl();
 
         // Body / description
-        createStoryParams.description = migrateDescription(card, footerNotes);
-
-        if (!dryRun) {
-            storiesService.createStory(createStoryParams);
-        }
+        createStoryParams.description = migrateDescription(card, cardData, footerNotes);
+        return createStoryParams;
     }
 
-    private Long migrateState(Card card, Board board, org.trello4j.model.List list) {
+    private Long migrateState(Card card, TrelloMigrationPlan.ListPlan listPlan) {
         if (card.isClosed()) {
             return completedStateId;
         }
 
-        if (MIGRATE_LISTS_AS_STATES.equalsIgnoreCase(getBoardMigrationParams(board.getName()).migrateListsAs)) {
-            Map<String, String> listStateMapping = getBoardMigrationParams(board.getName()).listStateMapping;
-            if (listStateMapping == null) {
-                throw new IllegalStateException("Missing 'listStateMapping' for board " + board.getName());
-            }
-            String stateName = listStateMapping.get(list.getName());
-            if (stateName == null) {
-                throw new IllegalStateException("Missing mapping for " + list.getName() + "in 'listStateMapping' for board " + board.getName());
-            }
-            WorkflowState state = workflowStates.get(stateName);
-            if (state == null) {
-                throw new IllegalStateException("Unknown workflow state: " + stateName);
-            }
-            return state.id;
+        if (listPlan.getStateId() != null) {
+            return listPlan.getStateId();
         }
 
         if (inReviewState(card)) {
@@ -226,9 +365,9 @@ public class TrelloMigration {
         return null;
     }
 
-    private List<CreateTaskParams> migrateTasks(Card card) {
+    private List<CreateTaskParams> migrateTasks(TrelloCardData cardData) {
         List<CreateTaskParams> createTaskParams = new ArrayList<>();
-        for (Checklist checklist : trelloClient.getChecklistByCard(card.getId())) {
+        for (Checklist checklist : cardData.getChecklists()) {
             checklist.getCheckItems().stream().sorted(Comparator.comparingDouble(Checklist.CheckItem::getPos)).forEachOrdered(item -> {
                 CreateTaskParams createTaskParam = new CreateTaskParams();
                 createTaskParam.complete = "complete".equalsIgnoreCase(item.getState());
@@ -239,9 +378,9 @@ public class TrelloMigration {
         return createTaskParams;
     }
 
-    private String migrateDescription(Card card, List<String> footerNotes) {
+    private String migrateDescription(Card card, TrelloCardData cardData, List<String> footerNotes) {
         String description = card.getDesc();
-        Card.Attachment cover = trelloClient.getCoverByCard(card.getId());
+        Card.Attachment cover = cardData.hasAttachments() ? trelloRetrier.get(() -> trelloClient.getCoverByCard(card.getId())) : null;
         if (cover != null) {
             description = "![" + cover.getName() + "](" + cover.getUrl() + ")\n\n" + description;
         }
@@ -249,15 +388,15 @@ public class TrelloMigration {
         return description + descriptionFooter;
     }
 
-    private List<CreateCommentParams> migrateComments(List<Action> actions) {
+    private List<CreateCommentParams> migrateComments(List<TrelloCardHistory.Comment> comments) {
         List<CreateCommentParams> result = new ArrayList<>();
-        for (Action comment : extractComments(actions)) {
+        for (TrelloCardHistory.Comment comment : comments) {
             CreateCommentParams createComment = new CreateCommentParams();
-            createComment.author_id = userMapping.getClubhouseMember(comment.getMemberCreator()).id;
-            createComment.created_at = toInstant(comment.getDate());
-            String commentText = comment.getData().getText();
-            if (createComment.author_id == null) {
-                String trelloUserDisplayName = userMapping.getTrelloUserDisplayName(comment.getMemberCreator());
+            createComment.author_id = userMapping.getClubhouseMember(comment.getAuthor()).id;
+            createComment.created_at = comment.getDate();
+            String commentText = comment.getText();
+            if (createComment.author_id == null && comment.getAuthor() != null) {
+                String trelloUserDisplayName = userMapping.getTrelloUserDisplayName(comment.getAuthor());
                 if (trelloUserDisplayName != null && trelloUserDisplayName.length() > 0) {
                     commentText = "**" + trelloUserDisplayName + ":** " + commentText;
                 }
@@ -268,56 +407,35 @@ public class TrelloMigration {
         return result;
     }
 
-    private Long migrateEpic(Card card, Board board, org.trello4j.model.List list) throws IOException {
+    private Long migrateEpic(Card card, TrelloMigrationPlan.ListPlan listPlan) throws IOException {
         if (dryRun) {
             return null;
         }
-        TrelloBoardMigrationParams boardMigrationParams = getBoardMigrationParams(board.getName());
-        String epicName = mapEpicName(card, board, boardMigrationParams);
-        if (MIGRATE_LISTS_AS_EPICS.equalsIgnoreCase(boardMigrationParams.migrateListsAs)) {
-            epicName += " - " + list.getName();
-        }
-        return getOrCreateEpic(epicName).id;
+        return epicRegistry.getOrCreate(listPlan.getEpicName(card)).id;
     }
 
-    private static String mapEpicName(Card card, Board board, TrelloBoardMigrationParams boardMigrationParams) {
-        if (boardMigrationParams.migrateLabelsIn != null) {
-            for (Card.Label label : card.getLabels()) {
-                if (boardMigrationParams.migrateLabelsIn.containsKey(label.getName())) {
-                    return boardMigrationParams.migrateLabelsIn.get(label.getName());
-                }
-            }
-        }
-        return board.getName();
-    }
-
-    private EpicSlim getOrCreateEpic(String epicName) throws IOException {
-        synchronized (epicList) {
-            return MigrationHelpers.getOrCreateEpic(epicsService, epicList, epicName);
-        }
-    }
-
-    private List<CreateLabelParams> migrateLabels(Card card, Board board, org.trello4j.model.List list) {
+    private List<CreateLabelParams> migrateLabels(Card card, TrelloMigrationPlan.ListPlan listPlan) {
         List<CreateLabelParams> result = new ArrayList<>();
         if (card.getLabels() != null) {
             result.addAll(card.getLabels().stream().
-                    filter(label -> !BUGS_LABELS.contains(label.getName().toLowerCase())).
-                    map(label -> new CreateLabelParams(mapLabel(label.getName()), getColor(label.getColor()))).
+                    filter(label -> !isBugLabel(label)).
+                    map(label -> labelRegistry.toStoryLabel(mapLabel(label.getName()), getColor(label.getColor()))).
                     collect(Collectors.toList()));
         }
-        if (MIGRATE_LISTS_AS_LABELS.equalsIgnoreCase(getBoardMigrationParams(board.getName()).migrateListsAs)) {
-            result.add(new CreateLabelParams(mapLabel(list.getName())));
+        if (listPlan.getLabel() != null) {
+            result.add(labelRegistry.toStoryLabel(listPlan.getLabel(), null));
         }
         return result;
     }
 
     private String mapLabel(String name) {
-        return migrationParams.labelsMapping.getOrDefault(name, name);
+        return migrationPlan.mapLabel(name);
     }
 
     private List<Long> migrateAttachments(Card card) throws IOException {
-        List<Long> result = new ArrayList<>();
-        for (Card.Attachment attachment : trelloClient.getAttachmentsByCard(card.getId())) {
+        // All the linked files of the card are requested at once, then awaited.
+        List<CompletableFuture<Long>> linkedFiles = new ArrayList<>();
+        for (Card.Attachment attachment : trelloRetrier.get(() -> trelloClient.getAttachmentsByCard(card.getId()))) {
             CreateLinkedFileParams createLinkedFile = new CreateLinkedFileParams();
             createLinkedFile.name = attachment.getName();
             createLinkedFile.url = attachment.getUrl();
@@ -329,8 +447,14 @@ public class TrelloMigration {
                 createLinkedFile.uploader_id = linkedFileUploader.id;
             }
             if (!dryRun) {
-                LinkedFile linkedFile = linkedFileService.createLinkedFile(createLinkedFile);
-                result.add(linkedFile.id);
+                linkedFiles.add(linkedFileRegistry.getOrCreate(createLinkedFile));
+            }
+        }
+        List<Long> result = new ArrayList<>();
+        for (CompletableFuture<Long> linkedFile : linkedFiles) {
+            Long linkedFileId = LinkedFileRegistry.await(linkedFile);
+            if (!result.contains(linkedFileId)) {
+                result.add(linkedFileId);
             }
         }
         return result;
@@ -338,7 +462,11 @@ public class TrelloMigration {
 
     private boolean isBug(Card card) {
         List<Card.Label> labels = card.getLabels();
-        return labels != null && labels.stream().anyMatch(label -> BUGS_LABELS.contains(label.getName().toLowerCase()));
+        return labels != null && labels.stream().anyMatch(TrelloMigration::isBugLabel);
+    }
+
+    private static boolean isBugLabel(Card.Label label) {
+        return BUGS_LABELS.contains(label.getName().toLowerCase());
     }
 
     private boolean inReviewState(Card card) {
@@ -346,49 +474,67 @@ public class TrelloMigration {
         return labels != null && labels.stream().anyMatch(label -> REVIEW_LABELS.contains(label.getName().toLowerCase()));
     }
 
-    private List<Action> extractComments(List<Action> actions) {
-        return actions.stream().filter(action -> "commentCard".equalsIgnoreCase(action.getType())).collect(Collectors.toList());
-    }
-
     private class MigrateTrelloRunnable implements Runnable {
-        private final Board board;
-        private final org.trello4j.model.List list;
+        private final TrelloMigrationPlan.ListPlan listPlan;
         private final Card card;
+        private final TrelloCardData cardData;
 
-        public MigrateTrelloRunnable(Board board, org.trello4j.model.List list, Card card) {
-            this.board = board;
-            this.list = list;
+        public MigrateTrelloRunnable(TrelloMigrationPlan.ListPlan listPlan, Card card, TrelloCardData cardData) {
+            this.listPlan = listPlan;
             this.card = card;
+            this.cardData = cardData;
         }
 
         @Override
         @SuppressWarnings("squid:S2629")
         public void run() {
+            String externalId = card.getUrl();
+            if (stopping) {
+                return;
+            }
             try {
                 // Checking issue in ClubHouse to see if it is not already present.
-                StorySlim existingStory = findTrelloCardInClubhouse(card);
-                if (existingStory == null) {
-                    migrateTrelloCard(board, list, card);
-                    logger.log(Level.INFO, "Migrated issue #" + card.getName());
+                if (storyIndex.claim(externalId)) {
+                    migrateAndIndex(externalId);
                 } else {
-                    logger.log(Level.INFO, "Skipping issue #" + card.getName() + ": already migrated to Clubhouse with id=" + existingStory.id);
+                    logger.log(Level.INFO, "Skipping issue #" + card.getName() + ": already migrated to Clubhouse with id=" + storyIndex.get(externalId));
                 }
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
                 logger.log(Level.WARNING, "Failed to migrate card #" + card.getId(), e);
             }
         }
 
-        private StorySlim findTrelloCardInClubhouse(Card card) throws IOException {
-            if (dryRun) {
-                return null;
+        private void migrateAndIndex(String externalId) throws IOException {
+            if (!dryRun) {
+                // Recorded before the linked files and epics of the item are created.
+                journal.started(externalId);
             }
-            SearchStoriesParams searchStoriesParams = new SearchStoriesParams();
-            searchStoriesParams.external_id = card.getUrl();
-            List<StorySlim> storySlims = storiesService.searchStories(searchStoriesParams);
-            if (!storySlims.isEmpty()) {
-                return storySlims.get(0);
+            CreateStoryParams createStoryParams;
+            try {
+                createStoryParams = toStoryParams(listPlan, card, cardData);
+            } catch (IOException | RuntimeException e) {
+                storyIndex.release(externalId);
+                if (!dryRun) {
+                    journal.failed(externalId);
+                }
+                throw e;
             }
-            return null;
+            if (dryRun) {
+                storyIndex.release(externalId);
+                return;
+            }
+            // The story is created with the next batch: a failure releases the card for the next run.
+            storyWriter.create(createStoryParams).whenComplete((storyId, e) -> {
+                if (e == null) {
+                    storyIndex.complete(externalId, storyId);
+                    journal.story(externalId, storyId);
+                    logger.log(Level.INFO, "Migrated issue #" + card.getName());
+                } else {
+                    storyIndex.release(externalId);
+                    journal.failed(externalId);
+                    logger.log(Level.WARNING, "Failed to create the story of card #" + card.getId(), e);
+                }
+            });
         }
 
     }
@@ -422,8 +568,4 @@ public class TrelloMigration {
                 return color.startsWith("#") ? color : "#" + color;
         }
     }
-
-    private static Instant toInstant(Date date) {
-        return Instant.ofEpochMilli(date.getTime());
-    }
 }
@@ -0,0 +1,218 @@
+package com.dataiku.clubhouse;
+
+import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_EPICS;
+import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_LABELS;
+import static com.dataiku.clubhouse.TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.trello4j.model.Board;
+import org.trello4j.model.Card;
+
+import com.google.common.base.Joiner;
+import io.clubhouse4j.api.v3beta.WorkflowState;
+
+/**
+ * {@link TrelloMigrationParams} compiled once into an immutable plan: boards are looked up by name in a hash map,
+ * workflow states are resolved, and configuration errors are all reported when the plan is compiled instead of
+ * failing the cards one by one during the migration. Boards that are not migrated are not validated.
+ */
+public class TrelloMigrationPlan {
+
+    public enum ListsAs {
+        STATES, LABELS, EPICS, NONE
+    }
+
+    private static final BoardPlan NOT_MIGRATED = new BoardPlan(null, false, ListsAs.LABELS, Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, BoardPlan> boardsByName;
+    private final Set<String> ignoredLists;
+    private final Map<String, String> labelsMapping;
+
+    private TrelloMigrationPlan(Map<String, BoardPlan> boardsByName, Set<String> ignoredLists, Map<String, String> labelsMapping) {
+        this.boardsByName = boardsByName;
+        this.ignoredLists = ignoredLists;
+        this.labelsMapping = labelsMapping;
+    }
+
+    public static TrelloMigrationPlan compile(TrelloMigrationParams params, Map<String, WorkflowState> workflowStates) {
+        List<String> errors = new ArrayList<>();
+        Map<String, BoardPlan> boardsByName = new HashMap<>();
+        if (params.boards != null) {
+            for (TrelloBoardMigrationParams boardParams : params.boards) {
+                String key = boardKey(boardParams.name);
+                if (boardsByName.containsKey(key)) {
+                    continue; // First one wins, as the board lookup used to.
+                }
+                boolean migrate = boardParams.migrate != null && boardParams.migrate;
+                if (!migrate) {
+                    // The configuration of a board that is not migrated is never used: its errors must not fail the run.
+                    boardsByName.put(key, new BoardPlan(boardParams.name, false, ListsAs.NONE, Collections.emptyMap(), Collections.emptyMap()));
+                    continue;
+                }
+                ListsAs listsAs = compileListsAs(boardParams, errors);
+                Map<String, Long> stateIdByList = new HashMap<>();
+                if (listsAs == ListsAs.STATES) {
+                    if (boardParams.listStateMapping == null || boardParams.listStateMapping.isEmpty()) {
+                        errors.add("Missing 'listStateMapping' for board " + boardParams.name);
+                    } else {
+                        for (Map.Entry<String, String> mapping : boardParams.listStateMapping.entrySet()) {
+                            WorkflowState state = workflowStates.get(mapping.getValue());
+                            if (state == null) {
+                                errors.add("Unknown workflow state '" + mapping.getValue() + "' for list " + mapping.getKey() + " of board " + boardParams.name);
+                            } else {
+                                stateIdByList.put(mapping.getKey(), state.id);
+                            }
+                        }
+                    }
+                }
+                Map<String, String> epicNameByLabel = boardParams.migrateLabelsIn == null ? Collections.emptyMap() : new HashMap<>(boardParams.migrateLabelsIn);
+                boardsByName.put(key, new BoardPlan(boardParams.name, true, listsAs, stateIdByList, epicNameByLabel));
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid Trello migration parameters:\n" + Joiner.on("\n").join(errors));
+        }
+        Set<String> ignoredLists = params.ignoredLists == null ? Collections.emptySet() : new HashSet<>(params.ignoredLists);
+        Map<String, String> labelsMapping = params.labelsMapping == null ? Collections.emptyMap() : new HashMap<>(params.labelsMapping);
+        return new TrelloMigrationPlan(boardsByName, ignoredLists, labelsMapping);
+    }
+
+    private static ListsAs compileListsAs(TrelloBoardMigrationParams boardParams, List<String> errors) {
+        String migrateListsAs = boardParams.migrateListsAs;
+        if (migrateListsAs == null) {
+            return ListsAs.NONE;
+        } else if (MIGRATE_LISTS_AS_STATES.equalsIgnoreCase(migrateListsAs)) {
+            return ListsAs.STATES;
+        } else if (MIGRATE_LISTS_AS_LABELS.equalsIgnoreCase(migrateListsAs)) {
+            return ListsAs.LABELS;
+        } else if (MIGRATE_LISTS_AS_EPICS.equalsIgnoreCase(migrateListsAs)) {
+            return ListsAs.EPICS;
+        }
+        errors.add("Unknown 'migrateListsAs' value '" + migrateListsAs + "' for board " + boardParams.name);
+        return ListsAs.NONE;
+    }
+
+    private static String boardKey(String boardName) {
+        return boardName == null ? null : boardName.toLowerCase(Locale.ROOT);
+    }
+
+    public BoardPlan getBoard(String boardName) {
+        return boardsByName.getOrDefault(boardKey(boardName), NOT_MIGRATED);
+    }
+
+    public boolean isIgnoredList(String listName) {
+        return ignoredLists.contains(listName);
+    }
+
+    public Set<String> getIgnoredLists() {
+        return ignoredLists;
+    }
+
+    public String mapLabel(String name) {
+        return labelsMapping.getOrDefault(name, name);
+    }
+
+    /**
+     * Resolves the plan of a list of a board being migrated. Throws if the list cannot be migrated with this
+     * configuration, so that the whole list is reported and skipped at once.
+     */
+    public ListPlan getList(Board board, org.trello4j.model.List list) {
+        BoardPlan boardPlan = getBoard(board.getName());
+        Long stateId = null;
+        if (boardPlan.listsAs == ListsAs.STATES) {
+            stateId = boardPlan.stateIdByList.get(list.getName());
+            if (stateId == null) {
+                throw new IllegalArgumentException("Missing mapping for " + list.getName() + " in 'listStateMapping' for board " + board.getName());
+            }
+        }
+        String label = boardPlan.listsAs == ListsAs.LABELS ? mapLabel(list.getName()) : null;
+        String epicSuffix = boardPlan.listsAs == ListsAs.EPICS ? " - " + list.getName() : "";
+        return new ListPlan(board, list, boardPlan, stateId, label, epicSuffix);
+    }
+
+    public static class BoardPlan {
+        private final String name;
+        private final boolean migrate;
+        private final ListsAs listsAs;
+        private final Map<String, Long> stateIdByList;
+        private final Map<String, String> epicNameByLabel;
+
+        private BoardPlan(String name, boolean migrate, ListsAs listsAs, Map<String, Long> stateIdByList, Map<String, String> epicNameByLabel) {
+            this.name = name;
+            this.migrate = migrate;
+            this.listsAs = listsAs;
+            this.stateIdByList = stateIdByList;
+            this.epicNameByLabel = epicNameByLabel;
+        }
+
+        public boolean isMigrated() {
+            return migrate;
+        }
+
+        public ListsAs getListsAs() {
+            return listsAs;
+        }
+    }
+
+    public static class ListPlan {
+        private final Board board;
+        private final org.trello4j.model.List list;
+        private final BoardPlan boardPlan;
+        private final Long stateId;
+        private final String label;
+        private final String epicSuffix;
+
+        private ListPlan(Board board, org.trello4j.model.List list, BoardPlan boardPlan, Long stateId, String label, String epicSuffix) {
+            this.board = board;
+            this.list = list;
+            this.boardPlan = boardPlan;
+            this.stateId = stateId;
+            this.label = label;
+            this.epicSuffix = epicSuffix;
+        }
+
+        public Board getBoard() {
+            return board;
+        }
+
+        public org.trello4j.model.List getList() {
+            return list;
+        }
+
+        /**
+         * Workflow state of the cards of this list, when lists are migrated as states.
+         */
+        public Long getStateId() {
+            return stateId;
+        }
+
+        /**
+         * Mapped label of the cards of this list, when lists are migrated as labels.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public String getEpicName(Card card) {
+            String epicName = board.getName();
+            if (!boardPlan.epicNameByLabel.isEmpty() && card.getLabels() != null) {
+                for (Card.Label cardLabel : card.getLabels()) {
+                    String mappedEpicName = boardPlan.epicNameByLabel.get(cardLabel.getName());
+                    if (mappedEpicName != null) {
+                        epicName = mappedEpicName;
+                        break;
+                    }
+                }
+            }
+            return epicName + epicSuffix;
+        }
+    }
+}
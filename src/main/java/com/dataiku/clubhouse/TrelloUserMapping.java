@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 
 import org.trello4j.Trello;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -34,7 +35,12 @@ public class TrelloUserMapping {
     private final LoadingCache<String, String> githubUserCache = CacheBuilder.newBuilder().build(new TrelloUserDisplayNameLoader());
 
     public TrelloUserMapping(ClubhouseClient chClient, Trello trelloClient, Map<String, String> userMappings) throws IOException {
-        this.members = new UsersService(chClient).listMembers();
+        this(new UsersService(chClient).listMembers(), trelloClient, userMappings);
+    }
+
+    @VisibleForTesting
+    TrelloUserMapping(List<Member> members, Trello trelloClient, Map<String, String> userMappings) {
+        this.members = members;
         this.clubhouseNameByTrelloLogin.putAll(userMappings);
         this.trelloClient = trelloClient;
     }
@@ -0,0 +1,133 @@
+package com.dataiku.clubhouse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class ClubhouseLimiterTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void shouldHalveOnRateLimit() {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(8, 1, 64, clock::get);
+        rateLimited(limiter);
+        assertEquals(4, limiter.getLimit());
+        rateLimited(limiter);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void shouldCutOncePerBurst() {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(8, 1, 64, clock::get);
+        // The outer request was sent before the cut of the inner one: its 429 does not cut the limit again.
+        assertThrows(IOException.class, () -> limiter.call(() -> {
+            rateLimited(limiter);
+            throw new IOException("Server returned HTTP response code: 429 for URL: https://api.clubhouse.io");
+        }));
+        assertEquals(4, limiter.getLimit());
+        rateLimited(limiter);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void shouldCutOnErrors() throws Exception {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(10, 1, 64, clock::get);
+        for (int i = 0; i < 8; i++) {
+            request(limiter, 10);
+        }
+        failed(limiter);
+        assertEquals(10, limiter.getLimit());
+        // 2 errors out of the 10 requests of the window.
+        failed(limiter);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void shouldCutOnLatencySpike() throws Exception {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(5, 1, 64, clock::get);
+        for (int i = 0; i < 5; i++) {
+            request(limiter, 10);
+        }
+        assertEquals(5, limiter.getLimit());
+        for (int i = 0; i < 5; i++) {
+            request(limiter, 30);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void shouldGrowOnlyWhenTheLimitIsReached() throws Exception {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(2, 1, 3, clock::get);
+        // Sequential requests never reach the limit of 2.
+        request(limiter, 10);
+        request(limiter, 10);
+        assertEquals(2, limiter.getLimit());
+
+        nested(limiter, 2);
+        assertEquals(3, limiter.getLimit());
+        nested(limiter, 3);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    void shouldNotCutBelowMinimum() {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(1, 1, 64, clock::get);
+        rateLimited(limiter);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    void shouldResizeExecutorsWithTheLimit() throws Exception {
+        ClubhouseLimiter limiter = new ClubhouseLimiter(8, 1, 64, clock::get);
+        ExecutorService executor = limiter.newExecutor("test-%d");
+        try {
+            assertEquals(8, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+            rateLimited(limiter);
+            assertEquals(4, ((ThreadPoolExecutor) executor).getCorePoolSize());
+            assertEquals(4, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private void request(ClubhouseLimiter limiter, long latencyMillis) throws IOException {
+        limiter.call(() -> clock.addAndGet(latencyMillis * MILLIS));
+    }
+
+    private void failed(ClubhouseLimiter limiter) {
+        assertThrows(IOException.class, () -> limiter.call(() -> {
+            clock.addAndGet(10 * MILLIS);
+            throw new IOException("Server returned HTTP response code: 400 for URL: https://api.clubhouse.io");
+        }));
+    }
+
+    private static void rateLimited(ClubhouseLimiter limiter) {
+        assertThrows(IOException.class, () -> limiter.call(() -> {
+            throw new IOException("Server returned HTTP response code: 429 for URL: https://api.clubhouse.io");
+        }));
+    }
+
+    /**
+     * Sends the given number of requests in flight at the same time, each one from within the previous one.
+     */
+    private void nested(ClubhouseLimiter limiter, int depth) throws IOException {
+        limiter.call(() -> {
+            clock.addAndGet(10 * MILLIS);
+            if (depth > 1) {
+                nested(limiter, depth - 1);
+            }
+            return null;
+        });
+    }
+}
@@ -2,10 +2,20 @@ package com.dataiku.clubhouse;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.junit.jupiter.api.Test;
 
 public class GithubMigrationTest {
 
+    // Former regex based implementation, kept as a reference for the forms it used to support.
+    private static final Pattern LEGACY_GITHUB_IMG_HTML = Pattern.compile("<img(?<width>\\s+width=\"[0-9]+\")?(?<alt>\\s+alt=\"(?<desc>[^\"]*)\")?\\s+src=\"(?<src>[^\"]*)\">");
+
+    private static final String SCREENSHOT = "https://user-images.githubusercontent.com/22987725/39273087-d1e6cc2e-48ab-11e8-83cf-c4a26f37488a.png";
+
     @Test
     void shouldPostProcessSimpleImage() {
         String actual = GithubMigration.postProcessImages("This is on my local instance, and here is where the folder lives:" +
@@ -17,4 +27,73 @@ public class GithubMigrationTest {
         assertEquals(expected, actual);
     }
 
-}
\ No newline at end of file
+    @Test
+    void shouldMatchLegacyOutputOnLegacyForms() {
+        List<String> corpus = Arrays.asList(
+                "",
+                "No image at all, but a <b>bold</b> tag and a 1 < 2 comparison.",
+                "<img src=\"" + SCREENSHOT + "\">",
+                "<img alt=\"\" src=\"" + SCREENSHOT + "\">",
+                "<img width=\"42\" src=\"" + SCREENSHOT + "\">",
+                "Before <img width=\"836\" alt=\"first\" src=\"" + SCREENSHOT + "\"> between <img alt=\"second\" src=\"https://example.com/a/b/\"> after",
+                "<img src=\"\">",
+                "<img src=\"///\">",
+                "Line 1\n<img width=\"10\" alt=\"multi\nline\" src=\"" + SCREENSHOT + "\">\nLine 3");
+        for (String content : corpus) {
+            assertEquals(legacyPostProcessImages(content), GithubMigration.postProcessImages(content));
+        }
+    }
+
+    @Test
+    void shouldPostProcessMissingBody() {
+        // Github sends no body for an issue or comment created without description.
+        assertEquals("", GithubMigration.postProcessImages(null));
+    }
+
+    @Test
+    void shouldPostProcessAttributesInAnyOrder() {
+        assertEquals("![desc](" + SCREENSHOT + ")",
+                GithubMigration.postProcessImages("<img src=\"" + SCREENSHOT + "\" height=\"200\" alt=\"desc\" width='300'>"));
+    }
+
+    @Test
+    void shouldPostProcessSelfClosingImage() {
+        assertEquals("a ![desc](" + SCREENSHOT + ") b ![image.png](https://example.com/image.png) c",
+                GithubMigration.postProcessImages("a <img alt=\"desc\" src=\"" + SCREENSHOT + "\"/> b <IMG src=https://example.com/image.png /> c"));
+    }
+
+    @Test
+    void shouldPostProcessLinkedImage() {
+        assertEquals("![desc](" + SCREENSHOT + ")",
+                GithubMigration.postProcessImages("<a target=\"_blank\" href=\"" + SCREENSHOT + "\"><img alt=\"desc\" src=\"" + SCREENSHOT + "\"></a>"));
+        assertEquals("[![desc](" + SCREENSHOT + ")](https://example.com)",
+                GithubMigration.postProcessImages("<a href=\"https://example.com\">\n  <img alt=\"desc\" src=\"" + SCREENSHOT + "\" />\n</a>"));
+    }
+
+    @Test
+    void shouldKeepUnsupportedHtml() {
+        assertEquals("<img alt=\"no source\">", GithubMigration.postProcessImages("<img alt=\"no source\">"));
+        assertEquals("<img src=\"unterminated", GithubMigration.postProcessImages("<img src=\"unterminated"));
+        assertEquals("<imgur> <a href=\"x\">link</a>", GithubMigration.postProcessImages("<imgur> <a href=\"x\">link</a>"));
+        assertEquals("<a href=\"x\">![y](y) text</a>", GithubMigration.postProcessImages("<a href=\"x\"><img src=\"y\"> text</a>"));
+    }
+
+    private static String legacyPostProcessImages(String content) {
+        Matcher matcher = LEGACY_GITHUB_IMG_HTML.matcher(content);
+        while (matcher.find()) {
+            int start = matcher.start();
+            int end = matcher.end();
+            String src = matcher.group("src");
+            String desc = matcher.group("desc");
+            if (desc == null) {
+                String[] split = src.split("/");
+                desc = split.length > 0 ? split[split.length - 1] : "image.png";
+            }
+            content = content.substring(0, start) + "![" + desc + "](" + src + ")" + content.substring(end);
+
+            matcher = LEGACY_GITHUB_IMG_HTML.matcher(content);
+        }
+        return content;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.dataiku.clubhouse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.clubhouse4j.api.v3beta.Milestone;
+
+public class HousekeepingTest {
+
+    private static final Comparator<Milestone> NEWEST_FIRST = (o1, o2) -> o1.name.compareTo(o2.name) * -1;
+
+    @Test
+    void shouldNotMoveSortedMilestones() {
+        assertEquals(0, Housekeeping.computeMilestoneMoves(milestones("DSS 5.0.2", "DSS 5.0.1", "DSS 4.3.0"), NEWEST_FIRST).size());
+        assertEquals(0, Housekeeping.computeMilestoneMoves(milestones(), NEWEST_FIRST).size());
+    }
+
+    @Test
+    void shouldMoveOnlyMisplacedMilestones() {
+        List<Milestone> milestones = milestones("DSS 5.0.1", "DSS 5.0.2", "DSS 4.3.0", "DSS 4.2.0", "DSS 4.1.0");
+        List<Housekeeping.MilestoneMove> moves = Housekeeping.computeMilestoneMoves(milestones, NEWEST_FIRST);
+        assertEquals(1, moves.size());
+        assertEquals(names(sorted(milestones)), names(apply(milestones, moves)));
+
+        // The newest milestone, appended last, is moved before the others.
+        milestones = milestones("DSS 5.0.1", "DSS 5.0.0", "DSS 4.3.0", "DSS 5.0.2");
+        moves = Housekeeping.computeMilestoneMoves(milestones, NEWEST_FIRST);
+        assertEquals(1, moves.size());
+        assertEquals(names(sorted(milestones)), names(apply(milestones, moves)));
+    }
+
+    @Test
+    void shouldSortShuffledMilestones() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            List<Milestone> milestones = new ArrayList<>();
+            int size = random.nextInt(30);
+            for (int i = 0; i < size; i++) {
+                milestones.add(milestone(i + 1, String.format("DSS %02d", i)));
+            }
+            Collections.shuffle(milestones, random);
+            List<Housekeeping.MilestoneMove> moves = Housekeeping.computeMilestoneMoves(milestones, NEWEST_FIRST);
+            assertEquals(names(sorted(milestones)), names(apply(milestones, moves)));
+        }
+    }
+
+    /**
+     * Applies the moves the way Clubhouse does.
+     */
+    private static List<Milestone> apply(List<Milestone> milestones, List<Housekeeping.MilestoneMove> moves) {
+        List<Milestone> result = new ArrayList<>(milestones);
+        for (Housekeeping.MilestoneMove move : moves) {
+            result.remove(move.milestone);
+            int anchor = result.indexOf(move.anchor);
+            result.add(move.params.before_id != null ? anchor : anchor + 1, move.milestone);
+        }
+        return result;
+    }
+
+    private static List<Milestone> sorted(List<Milestone> milestones) {
+        List<Milestone> sorted = new ArrayList<>(milestones);
+        sorted.sort(NEWEST_FIRST);
+        return sorted;
+    }
+
+    private static List<String> names(List<Milestone> milestones) {
+        return milestones.stream().map(m -> m.name).collect(Collectors.toList());
+    }
+
+    private static List<Milestone> milestones(String... names) {
+        List<Milestone> milestones = new ArrayList<>();
+        for (String name : Arrays.asList(names)) {
+            milestones.add(milestone(milestones.size() + 1, name));
+        }
+        return milestones;
+    }
+
+    private static Milestone milestone(long id, String name) {
+        Milestone milestone = new Milestone();
+        milestone.id = id;
+        milestone.name = name;
+        return milestone;
+    }
+}
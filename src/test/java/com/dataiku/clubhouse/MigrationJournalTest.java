@@ -0,0 +1,128 @@
+package com.dataiku.clubhouse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class MigrationJournalTest {
+
+    private static final UUID UPLOADER = new UUID(0, 1);
+
+    @Test
+    void shouldReplayPreviousRuns() throws Exception {
+        File file = newJournalFile();
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            journal.started("card-1");
+            journal.linkedFile("https://trello.com/file.png", UPLOADER, 5);
+            journal.epic("Epic", 7);
+            journal.story("card-1", 10);
+        }
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(ImmutableMap.of("card-1", 10L), journal.getStoryIds());
+            assertEquals(Long.valueOf(5), journal.getLinkedFileId("https://trello.com/file.png", UPLOADER));
+            assertEquals(ImmutableMap.of("Epic", 7L), journal.getEpicIds());
+            assertEquals(Collections.emptyList(), journal.getUnfinishedItems());
+        }
+    }
+
+    @Test
+    void shouldSkipTornLastLine() throws Exception {
+        File file = newJournalFile();
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            journal.story("card-1", 10);
+        }
+        Files.write(file.toPath(), "{\"run\":\"torn\",\"step\":\"STO".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(ImmutableMap.of("card-1", 10L), journal.getStoryIds());
+            journal.story("card-2", 11);
+        }
+        // The torn line was terminated, so the entry appended after it is replayed.
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(ImmutableMap.of("card-1", 10L, "card-2", 11L), journal.getStoryIds());
+        }
+    }
+
+    @Test
+    void shouldListUnfinishedItems() throws Exception {
+        File file = newJournalFile();
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            journal.started("card-3");
+            journal.started("card-1");
+            journal.started("card-2");
+            journal.story("card-1", 10);
+            journal.failed("card-2");
+            assertEquals(Arrays.asList("card-2", "card-3"), journal.getUnfinishedItems());
+        }
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(Arrays.asList("card-2", "card-3"), journal.getUnfinishedItems());
+        }
+    }
+
+    @Test
+    void shouldIgnoreRolledBackRuns() throws Exception {
+        File file = newJournalFile();
+        String firstRun;
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            firstRun = journal.getRunId();
+            journal.epic("Epic", 7);
+            journal.story("card-1", 10);
+        }
+        String secondRun = nextRun(file, firstRun);
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(Arrays.asList(firstRun, secondRun), journal.getRuns());
+            assertEquals(Arrays.asList(11L), journal.getCreated(secondRun).stories);
+            assertEquals(Collections.singleton(secondRun), journal.getReusingRuns(MigrationJournal.Step.EPIC, 7));
+
+            journal.rolledBack(secondRun);
+            assertEquals(Arrays.asList(firstRun), journal.getRuns());
+            assertEquals(ImmutableMap.of("card-1", 10L), journal.getStoryIds());
+            assertEquals(Collections.emptyList(), journal.getUnfinishedItems());
+            assertTrue(journal.getReusingRuns(MigrationJournal.Step.EPIC, 7).isEmpty());
+        }
+        try (MigrationJournal journal = MigrationJournal.open(file)) {
+            assertEquals(Arrays.asList(firstRun), journal.getRuns());
+            assertEquals(0, journal.getCreated(secondRun).size());
+            assertEquals(ImmutableMap.of("card-1", 10L), journal.getStoryIds());
+        }
+    }
+
+    /**
+     * Records a second run, which reuses the epic of the first one and leaves an item unfinished.
+     */
+    private static String nextRun(File file, String previousRun) throws Exception {
+        while (true) {
+            try (MigrationJournal journal = MigrationJournal.open(file)) {
+                if (journal.getRunId().equals(previousRun)) {
+                    // Runs are identified by their start time: wait for the clock to move.
+                    Thread.sleep(1);
+                    continue;
+                }
+                journal.reused(MigrationJournal.Step.EPIC, 7);
+                journal.started("card-2");
+                journal.story("card-2", 11);
+                journal.started("card-3");
+                return journal.getRunId();
+            }
+        }
+    }
+
+    private static File newJournalFile() throws IOException {
+        File file = Files.createTempFile("journal", ".log").toFile();
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,43 @@
+package com.dataiku.clubhouse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.eclipse.egit.github.core.RequestError;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.junit.jupiter.api.Test;
+
+public class RequestRetrierTest {
+
+    @Test
+    void shouldRetryTransientStatuses() {
+        assertTrue(RequestRetrier.isTransient(new IOException("Server returned HTTP response code: 503 for URL: https://api.clubhouse.io/api/v3/stories")));
+        assertTrue(RequestRetrier.isTransient(new RuntimeException("HTTP 500 Internal Server Error")));
+        assertTrue(RequestRetrier.isTransient(new RuntimeException("Unexpected status code: 502")));
+        assertTrue(RequestRetrier.isTransient(new IllegalStateException(new IOException("HTTP/1.1 429 Too Many Requests"))));
+        assertTrue(RequestRetrier.isTransient(new RequestException(new RequestError(), 504)));
+        assertTrue(RequestRetrier.isTransient(new SocketTimeoutException("Read timed out")));
+    }
+
+    @Test
+    void shouldNotRetryIdsOrCounts() {
+        assertFalse(RequestRetrier.isTransient(new IOException("Server returned HTTP response code: 400 for URL: https://api.clubhouse.io/api/v3/stories/500")));
+        assertFalse(RequestRetrier.isTransient(new IOException("Story 500 not found")));
+        assertFalse(RequestRetrier.isTransient(new IOException("Failed to update 429 stories")));
+        assertFalse(RequestRetrier.isTransient(new RuntimeException("Card 5c0a8f502e8d7e0504b2a429 is closed")));
+        assertFalse(RequestRetrier.isTransient(new RuntimeException("Label 503 already exists")));
+        assertFalse(RequestRetrier.isTransient(new RequestException(new RequestError(), 422)));
+        assertFalse(RequestRetrier.isTransient(new IOException((String) null)));
+    }
+
+    @Test
+    void shouldReadRetryAfterHeaderOnly() {
+        assertEquals(Long.valueOf(30), RequestRetrier.getRetryAfterSeconds(new IOException("HTTP 429 Too Many Requests, Retry-After: 30")));
+        assertEquals(null, RequestRetrier.getRetryAfterSeconds(new IOException("HTTP 429 Too Many Requests")));
+        assertEquals(null, RequestRetrier.getRetryAfterSeconds(new IOException("Story 500 failed, retry-after-429 label")));
+    }
+}
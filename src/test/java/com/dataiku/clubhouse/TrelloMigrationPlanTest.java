@@ -0,0 +1,106 @@
+package com.dataiku.clubhouse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ImmutableMap;
+import io.clubhouse4j.api.v3beta.WorkflowState;
+
+public class TrelloMigrationPlanTest {
+
+    private static final Map<String, WorkflowState> WORKFLOW_STATES = ImmutableMap.of("Unscheduled", state(1), "Completed", state(2));
+
+    @Test
+    void shouldCompileValidPlan() {
+        TrelloBoardMigrationParams states = board("Backlog", true, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES);
+        states.listStateMapping.put("Todo", "Unscheduled");
+        states.listStateMapping.put("Done", "Completed");
+        TrelloMigrationParams params = params(
+                states,
+                board("Roadmap", true, "EPIC"),
+                board("Ideas", true, null),
+                board("Archive", false, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_LABELS),
+                board("backlog", false, null));
+        params.ignoredLists = Collections.singletonList("Trash");
+        params.labelsMapping = ImmutableMap.of("bug", "type:bug");
+
+        TrelloMigrationPlan plan = TrelloMigrationPlan.compile(params, WORKFLOW_STATES);
+        // Boards are looked up regardless of case, and the first one of a name wins.
+        assertTrue(plan.getBoard("BACKLOG").isMigrated());
+        assertEquals(TrelloMigrationPlan.ListsAs.STATES, plan.getBoard("backlog").getListsAs());
+        assertEquals(TrelloMigrationPlan.ListsAs.EPICS, plan.getBoard("Roadmap").getListsAs());
+        assertEquals(TrelloMigrationPlan.ListsAs.NONE, plan.getBoard("Ideas").getListsAs());
+        assertFalse(plan.getBoard("Archive").isMigrated());
+        assertFalse(plan.getBoard("Unknown").isMigrated());
+        assertTrue(plan.isIgnoredList("Trash"));
+        assertEquals("type:bug", plan.mapLabel("bug"));
+        assertEquals("feature", plan.mapLabel("feature"));
+    }
+
+    @Test
+    void shouldRejectUnknownListsAs() {
+        assertInvalid("Unknown 'migrateListsAs' value 'column' for board Backlog", board("Backlog", true, "column"));
+    }
+
+    @Test
+    void shouldRejectMissingStateMapping() {
+        assertInvalid("Missing 'listStateMapping' for board Backlog", board("Backlog", true, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES));
+    }
+
+    @Test
+    void shouldRejectUnknownWorkflowState() {
+        TrelloBoardMigrationParams board = board("Backlog", true, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES);
+        board.listStateMapping.put("Todo", "Unscheduled");
+        board.listStateMapping.put("Doing", "In Progress");
+        assertInvalid("Unknown workflow state 'In Progress' for list Doing of board Backlog", board);
+    }
+
+    @Test
+    void shouldReportAllErrorsAtOnce() {
+        TrelloBoardMigrationParams states = board("Backlog", true, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES);
+        states.listStateMapping = null;
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> TrelloMigrationPlan.compile(params(states, board("Roadmap", true, "column")), WORKFLOW_STATES));
+        assertEquals("Invalid Trello migration parameters:\n" +
+                "Missing 'listStateMapping' for board Backlog\n" +
+                "Unknown 'migrateListsAs' value 'column' for board Roadmap", e.getMessage());
+    }
+
+    @Test
+    void shouldNotValidateBoardsThatAreNotMigrated() {
+        TrelloBoardMigrationParams states = board("Backlog", false, TrelloBoardMigrationParams.MIGRATE_LISTS_AS_STATES);
+        states.listStateMapping.put("Doing", "In Progress");
+        TrelloMigrationPlan plan = TrelloMigrationPlan.compile(params(states, board("Roadmap", null, "column")), WORKFLOW_STATES);
+        assertFalse(plan.getBoard("Backlog").isMigrated());
+        assertFalse(plan.getBoard("Roadmap").isMigrated());
+    }
+
+    private static void assertInvalid(String error, TrelloBoardMigrationParams board) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> TrelloMigrationPlan.compile(params(board), WORKFLOW_STATES));
+        assertEquals("Invalid Trello migration parameters:\n" + error, e.getMessage());
+    }
+
+    private static TrelloMigrationParams params(TrelloBoardMigrationParams... boards) {
+        TrelloMigrationParams params = new TrelloMigrationParams();
+        params.boards = Arrays.asList(boards);
+        return params;
+    }
+
+    private static TrelloBoardMigrationParams board(String name, Boolean migrate, String migrateListsAs) {
+        return new TrelloBoardMigrationParams(name, migrate, migrateListsAs);
+    }
+
+    private static WorkflowState state(long id) {
+        WorkflowState state = new WorkflowState();
+        state.id = id;
+        return state;
+    }
+}